@@ -0,0 +1,55 @@
+# Helpers shared by the check and benchmark scripts of src/ (sourced, not run).
+# The sourcing script sets SRC_DIR to this directory first.
+
+# The bundled key store's password is read from the environment (changeit: development key store)
+export CHAT_KEYSTORE_PASSWORD=${CHAT_KEYSTORE_PASSWORD:-changeit}
+
+# Compiles the server of a source tree (this one by default) into a classes directory,
+# so the source tree stays untouched
+compile_server() {
+    local classes=$1 tree=${2:-$SRC_DIR}
+    javac -d "$classes" "$tree"/server/*.java
+}
+
+# Prints the lines of a users.txt with user<first>..user<last>, password pass<i>
+bench_users() {
+    for i in $(seq "$1" "$2"); do echo "user$i:pass$i"; done
+}
+
+# Waits until a line matching the pattern appears in a log file, checking every
+# interval seconds (default 0.05)
+wait_for_line() {
+    until grep -q "$2" "$1" 2>/dev/null; do sleep "${3:-0.05}"; done
+}
+
+# Runs a client (openssl s_client) that logs in as user<i>, joins a room, sends what the
+# given command prints, then /exit; the server's replies go to the log file.
+#   chat_client port i room log command [arguments...]
+chat_client() {
+    local port=$1 i=$2 room=$3 log=$4
+    shift 4
+    { printf 'LOGIN\nuser%s\npass%s\n%s\n' "$i" "$i" "$room"; "$@"; printf '/exit\n'; } \
+        | openssl s_client -quiet -connect "localhost:$port" > "$log" 2>/dev/null
+}
+
+# Client command that sends nothing and stays connected until the file "done" exists
+# in the current directory
+stay_until_done() {
+    while [ ! -f done ]; do sleep 0.2; done
+}
+
+# Client command that sends a burst of the given number of lines, then stays until done
+send_burst() {
+    for m in $(seq 1 "$1"); do echo "bench-msg $m padding padding padding padding"; done
+    stay_until_done
+}
+
+# Starts receivers user1..user<count> in a room, logging to client<i>.log in the current
+# directory, and waits until all of them have joined
+start_receivers() {
+    local port=$1 count=$2 room=$3
+    for i in $(seq 1 "$count"); do
+        chat_client "$port" "$i" "$room" "client$i.log" stay_until_done &
+    done
+    until [ "$(cat client*.log 2>/dev/null | grep -c "^Room: $room")" -ge "$count" ]; do sleep 0.02; done
+}
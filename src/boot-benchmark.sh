@@ -0,0 +1,66 @@
+#!/usr/bin/env bash
+# Boot-time benchmark on a large synthetic data set.
+# Generates a sessions file and room history files, starts the server, and reports:
+#   - time until the listener accepts connections ("Chat server started")
+#   - time until the first client request is answered (STATUS over TLS)
+#   - time until sessions and room histories are restored ("Server ready")
+#
+# Usage (from src/): ./boot-benchmark.sh [sessions] [rooms] [messagesPerRoom]
+# Requires Java 21+ (javac, java) and openssl.
+set -euo pipefail
+
+SESSIONS=${1:-20000}
+ROOMS=${2:-200}
+MESSAGES=${3:-20000}
+PORT=12345
+SRC_DIR=$(cd "$(dirname "$0")" && pwd)
+WORK_DIR=$(mktemp -d)
+SERVER_PID=
+# The shutdown hook rewrites the histories, so wait for the server before cleaning up
+trap '[ -n "$SERVER_PID" ] && kill "$SERVER_PID" 2>/dev/null && wait "$SERVER_PID"; rm -rf "$WORK_DIR"' EXIT
+
+. "$SRC_DIR/bench-common.sh"
+
+compile_server "$WORK_DIR/classes"
+cp "$SRC_DIR/server_keystore.jks" "$SRC_DIR/tls.txt" "$WORK_DIR/"
+cd "$WORK_DIR"
+
+echo "Generating $SESSIONS sessions and $ROOMS rooms with $MESSAGES messages each..."
+NOW=$(date +%s%3N)
+awk -v n="$SESSIONS" -v rooms="$ROOMS" -v now="$NOW" 'BEGIN {
+    for (i = 1; i <= n; i++) {
+        printf "token-%d:user%d:room%d,room%d:3600000:%s\n", i, i, i % rooms, (i * 7) % rooms, now
+    }
+}' > sessions.txt
+for r in $(seq 0 $((ROOMS - 1))); do
+    awk -v n="$MESSAGES" -v now="$NOW" 'BEGIN {
+        for (i = 1; i <= n; i++) {
+            printf "%s%05d\tCHAT\tuser%d\tsynthetic message number %d with some text in it\n", substr(now, 1, length(now) - 5), i, i % 500, i
+        }
+    }' > "chat_room$r.txt"
+done
+touch users.txt
+du -sh . | awk '{print "Data set size: " $1}'
+
+START=$(date +%s%3N)
+java -cp classes server.ServerMain > server.log 2>&1 &
+SERVER_PID=$!
+
+# Listener up
+wait_for_line server.log "Chat server started" 0.01
+LISTENING=$(( $(date +%s%3N) - START ))
+
+# First request answered
+until printf 'STATUS\n' | openssl s_client -quiet -connect "localhost:$PORT" 2>/dev/null | grep -qE "READY|STARTING"; do
+    sleep 0.01
+done
+FIRST_REPLY=$(( $(date +%s%3N) - START ))
+
+# Sessions and histories restored
+until grep -q "Server ready" server.log; do sleep 0.05; done
+READY=$(( $(date +%s%3N) - START ))
+
+echo "Listener up after:     ${LISTENING} ms"
+echo "First reply after:     ${FIRST_REPLY} ms"
+echo "Fully ready after:     ${READY} ms"
+grep "Server ready" server.log
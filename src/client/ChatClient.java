@@ -9,12 +9,23 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 public class ChatClient {
-    // Server configuration constants
+    // Default server configuration
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 12345;
 
+    private final String host;
+    private final int port;
+
+    public ChatClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Usage: java client.ChatClient [host [port]] (e.g. to connect to another cluster node)
     public static void main(String[] args) {
-        new ChatClient().start(); // Start the client
+        String host = args.length > 0 ? args[0] : SERVER_HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : SERVER_PORT;
+        new ChatClient(host, port).start(); // Start the client
     }
 
     public void start() {
@@ -33,7 +44,7 @@ public class ChatClient {
 
 
         // Proceed to regular login or registration
-        try (SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(SERVER_HOST, SERVER_PORT);
+        try (SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(host, port);
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
              Scanner scanner = new Scanner(System.in)) {
@@ -41,7 +52,7 @@ public class ChatClient {
             // Print local socket port and server welcome message
             System.out.println("Client local port: " + socket.getLocalPort());
             // "Welcome to ChatApp!" message
-            System.out.println(in.readLine());
+            System.out.println(readResponse(in, out));
 
             // Ask the user if they want to login or register
             System.out.print("Do you want to (1) Login or (2) Register? ");
@@ -58,7 +69,7 @@ public class ChatClient {
                 String password = scanner.nextLine();
                 out.println(password);
 
-                String regResponse = in.readLine();
+                String regResponse = readResponse(in, out);
                 if ("REG_SUCCESS".equals(regResponse)) {
                     System.out.println("Registration successful! Please login now.");
                 } else {
@@ -77,23 +88,15 @@ public class ChatClient {
             String password = scanner.nextLine();
             out.println(password);
 
-            String authResponse = in.readLine();
+            String authResponse = readResponse(in, out);
             if ("AUTH_SUCCESS".equals(authResponse)) {
                 System.out.println("Login successful!");
 
                 // Receive token from server and save it locally
-                String tokenLine = in.readLine();
-                System.out.println("DEBUG: Received from server -> " + tokenLine);
-                if (tokenLine.startsWith("TOKEN")) {
-                    String token = tokenLine.substring(6);
-                    try {
-                        FileWriter fw = new FileWriter("token.txt");
-                        fw.write(token + "\n");
-                        fw.close();
-                        System.out.println("Token saved successfully.");
-                    } catch (IOException e) {
-                        System.err.println("Error saving token: " + e.getMessage());
-                    }
+                String tokenLine = readResponse(in, out);
+                if (tokenLine != null && tokenLine.startsWith("TOKEN")) {
+                    saveToken(tokenLine.substring(6));
+                    System.out.println("Token saved successfully.");
                 }
 
                 // Start thread to receive messages from server
@@ -105,6 +108,11 @@ public class ChatClient {
                             if (serverMsg == null) {
                                 throw new IOException("Server closed connection.");
                             }
+                            if (serverMsg.equals("PING")) {
+                                out.println("PONG"); // Answer the server heartbeat
+                                continue;
+                            }
+                            if (handleSessionLine(serverMsg)) continue;
                             System.out.println(serverMsg);
                         }
                     } catch (IOException e) {
@@ -135,16 +143,16 @@ public class ChatClient {
 
     // Attempt to reconnect using stored token
     private boolean reconnectWithToken(String token) {
-        try (SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(SERVER_HOST, SERVER_PORT);
+        try (SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(host, port);
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
     
             out.println("RECONNECT " + token);
-            String response = in.readLine();
+            String response = readResponse(in, out);
     
             if ("RECONNECT_SUCCESS".equals(response)) {
                 System.out.println("Reconnected successfully.");
-                System.out.println(in.readLine()); // Welcome back
+                System.out.println(readResponse(in, out)); // Welcome back
                 
                 runClientLoop(in, out, new Scanner(System.in), token);
     
@@ -170,6 +178,40 @@ public class ChatClient {
         }
     }
     
+    // Reads the next server reply during login, answering heartbeats on the way:
+    // the server may send PING while the user is still typing at a prompt
+    private String readResponse(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && line.equals("PING")) {
+            out.println("PONG");
+        }
+        return line;
+    }
+
+    // Handles session lines from the server: a re-issued token replaces the saved one,
+    // and a confirmed logout removes it. Returns true if the line was handled.
+    private boolean handleSessionLine(String msg) {
+        if (msg.startsWith("TOKEN ")) {
+            saveToken(msg.substring(6)); // Signed tokens change whenever the rooms change
+            return true;
+        }
+        if (msg.equals("LOGGED_OUT")) {
+            new File("token.txt").delete();
+            System.out.println("Logged out.");
+            System.exit(0);
+        }
+        return false;
+    }
+
+    // Save token to file for later reconnection
+    private void saveToken(String token) {
+        try (FileWriter fw = new FileWriter("token.txt")) {
+            fw.write(token + "\n");
+        } catch (IOException e) {
+            System.err.println("Error saving token: " + e.getMessage());
+        }
+    }
+
     // Read token from file if available
     private String readTokenFromFile() {
         try (BufferedReader reader = new BufferedReader(new FileReader("token.txt"))) {
@@ -185,12 +227,17 @@ public class ChatClient {
             try {
                 String msg;
                 while ((msg = in.readLine()) != null) {
+                    if (msg.equals("PING")) {
+                        out.println("PONG"); // Answer the server heartbeat
+                        continue;
+                    }
+                    if (handleSessionLine(msg)) continue;
                     System.out.println(msg);
                 }
                 throw new IOException("Server disconnected");
             } catch (IOException e) {
                 System.err.println("Disconnected. Trying to reconnect...");
-                reconnectLoop(token); // Reconnect automatically
+                reconnectLoop(readTokenFromFile()); // Reconnect automatically (the token may have been re-issued)
             }
         });
     
@@ -0,0 +1,167 @@
+#!/usr/bin/env bash
+# Stress test that fails if a virtual thread gets pinned to its carrier inside server code.
+# The server runs with -Djdk.tracePinnedThreads=full and a JFR recording; many TLS clients
+# (openssl s_client) then log in, join shared rooms and broadcast messages concurrently.
+# Any pinned stack trace or jdk.VirtualThreadPinned event with a "server." frame fails the check.
+#
+# Two runs are made with the same clients:
+#   single  : one server
+#   cluster : two nodes (TLS links, shared secret) with the clients spread over both, so
+#             rooms owned by one node are used through mirrors on the other (PeerLink and
+#             the cluster LineReader on every message)
+# In both runs some clients use an AI room served by the "process" backend; a stub
+# "ollama" command on the PATH answers, so OllamaProcessBackend runs without a model.
+#
+# Usage (from src/): ./pinning-check.sh [clients] [messagesPerClient]
+# Requires Java 21+ (javac, java, jfr) and openssl.
+set -euo pipefail
+
+CLIENTS=${1:-50}
+MESSAGES=${2:-20}
+ROOMS=5
+PORT=12345
+SRC_DIR=$(cd "$(dirname "$0")" && pwd)
+WORK_DIR=$(mktemp -d)
+SERVER_PIDS=()
+trap 'kill "${SERVER_PIDS[@]}" 2>/dev/null || true; rm -rf "$WORK_DIR"' EXIT
+
+. "$SRC_DIR/bench-common.sh"
+
+compile_server "$WORK_DIR/classes"
+# cluster.txt below reads the cluster secret from the environment
+export CHAT_CLUSTER_SECRET=${CHAT_CLUSTER_SECRET:-$(openssl rand -base64 32)}
+
+# Stub for "ollama run <model>": reads the prompt and answers after a short delay
+mkdir "$WORK_DIR/bin"
+cat > "$WORK_DIR/bin/ollama" <<'EOF'
+#!/usr/bin/env bash
+cat > /dev/null
+sleep 0.1
+echo "pinning-check answer"
+EOF
+chmod +x "$WORK_DIR/bin/ollama"
+export PATH="$WORK_DIR/bin:$PATH"
+
+# Creates a server directory with the files every node needs
+setup_node() {
+    local dir=$1
+    mkdir -p "$dir"
+    cp "$SRC_DIR/server_keystore.jks" "$SRC_DIR/tls.txt" "$dir/"
+    bench_users 1 "$CLIENTS" > "$dir/users.txt"
+    printf 'concurrency 2\ndeadline 30\nqueue 8\nbackend process pinning-check\nembedding hash 64\n' > "$dir/ai.txt"
+}
+
+# Starts a server (arguments: directory, then ServerMain arguments) and waits until it accepts connections
+start_server() {
+    local dir=$1
+    shift
+    (cd "$dir" && exec java -Djdk.tracePinnedThreads=full \
+         -XX:StartFlightRecording=filename=pinning.jfr,settings=profile \
+         -cp "$WORK_DIR/classes" server.ServerMain "$@" > server.log 2>&1) &
+    SERVER_PIDS+=($!)
+    for _ in $(seq 1 50); do
+        grep -q "Chat server started" "$dir/server.log" && break
+        sleep 0.2
+    done
+}
+
+stop_servers() {
+    kill "${SERVER_PIDS[@]}"
+    wait "${SERVER_PIDS[@]}" 2>/dev/null || true
+    SERVER_PIDS=()
+}
+
+# Client command: sends the messages of user<i> once its log shows it in the room
+# (handshakes are slow under load, and the client must still be there to receive the
+# other clients' messages)
+post_messages() {
+    local i=$1 log=$2
+    for _ in $(seq 1 300); do grep -q '^Room: ' "$log" 2>/dev/null && break; sleep 0.1; done
+    for m in $(seq 1 "$MESSAGES"); do printf 'message %s from user%s\n' "$m" "$i"; done
+    sleep 2 # Keep receiving broadcasts (and bot answers) from the other clients for a while
+}
+
+# Each client logs in, joins a room (every sixth one the AI room), sends its messages and exits
+run_client() {
+    local i=$1 port=$2 dir=$3
+    local room="room$((i % (ROOMS + 1)))"
+    [ $((i % (ROOMS + 1))) -eq "$ROOMS" ] && room="AI:pinning"
+    chat_client "$port" "$i" "$room" "$dir/client$i.log" post_messages "$i" "$dir/client$i.log" || true
+}
+
+FAILED=0
+
+# Fails the check if a server's trace or recording shows pinning in server code
+check_pinning() {
+    local dir=$1 name=$2
+    # tracePinnedThreads prints one stack trace per pinning; keep only those reaching server code
+    if grep -A 40 "onPinned" "$dir/server.log" | grep -q "server\."; then
+        echo "FAIL: pinned virtual threads in server code on $name (jdk.tracePinnedThreads):"
+        grep -B 1 -A 40 "onPinned" "$dir/server.log"
+        FAILED=1
+    fi
+    if jfr print --events jdk.VirtualThreadPinned "$dir/pinning.jfr" | grep -q "server\."; then
+        echo "FAIL: jdk.VirtualThreadPinned events in server code on $name:"
+        jfr print --events jdk.VirtualThreadPinned "$dir/pinning.jfr"
+        FAILED=1
+    fi
+}
+
+# Reports what a run delivered; a run without bot answers did not exercise the process backend
+report() {
+    local name=$1 clients=$2
+    local delivered answers
+    delivered=$(cat "$clients"/client*.log | grep -c "message " || true)
+    answers=$(cat "$clients"/client*.log | grep -c "Bot: pinning-check answer" || true)
+    echo "$name: clients: $CLIENTS, messages each: $MESSAGES, lines delivered: $delivered, bot answers: $answers"
+    if [ "$answers" -eq 0 ]; then
+        echo "FAIL: no bot answer in the $name run (OllamaProcessBackend not exercised)"
+        FAILED=1
+    fi
+}
+
+# --- Single server ---
+setup_node "$WORK_DIR/single"
+start_server "$WORK_DIR/single"
+CLIENT_PIDS=()
+for i in $(seq 1 "$CLIENTS"); do run_client "$i" "$PORT" "$WORK_DIR/single" & CLIENT_PIDS+=($!); done
+wait "${CLIENT_PIDS[@]}" 2>/dev/null || true
+stop_servers
+check_pinning "$WORK_DIR/single" "single server"
+report single "$WORK_DIR/single"
+
+# --- Two-node cluster ---
+for node in node1 node2; do
+    setup_node "$WORK_DIR/$node"
+    printf 'secret-env CHAT_CLUSTER_SECRET\nnode1 localhost %s %s\nnode2 localhost %s %s\n' \
+        "$PORT" $((PORT + 1000)) $((PORT + 1)) $((PORT + 1001)) > "$WORK_DIR/$node/cluster.txt"
+    start_server "$WORK_DIR/$node" "$node"
+done
+for _ in $(seq 1 50); do
+    grep -q "Cluster link to node2 established" "$WORK_DIR/node1/server.log" \
+        && grep -q "Cluster link to node1 established" "$WORK_DIR/node2/server.log" && break
+    sleep 0.2
+done
+if ! grep -q "Cluster link to node2 established" "$WORK_DIR/node1/server.log" \
+        || ! grep -q "Cluster link to node1 established" "$WORK_DIR/node2/server.log"; then
+    echo "FAIL: the cluster nodes did not connect:"
+    cat "$WORK_DIR/node1/server.log" "$WORK_DIR/node2/server.log"
+    exit 1
+fi
+# Clients alternate between the nodes for each round of rooms, so every room has participants
+# on both nodes; their logs are collected in one directory
+mkdir "$WORK_DIR/cluster"
+CLIENT_PIDS=()
+for i in $(seq 1 "$CLIENTS"); do
+    run_client "$i" $((PORT + (i - 1) / (ROOMS + 1) % 2)) "$WORK_DIR/cluster" & CLIENT_PIDS+=($!)
+done
+wait "${CLIENT_PIDS[@]}" 2>/dev/null || true
+stop_servers
+check_pinning "$WORK_DIR/node1" "cluster node1"
+check_pinning "$WORK_DIR/node2" "cluster node2"
+report cluster "$WORK_DIR/cluster"
+
+if [ "$FAILED" -eq 0 ]; then
+    echo "PASS: no virtual thread pinning in server code"
+fi
+exit "$FAILED"
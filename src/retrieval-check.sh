@@ -0,0 +1,88 @@
+#!/usr/bin/env bash
+# Check of the retrieval used by AI rooms: VectorIndex searched with HashingEmbedder vectors.
+# A small program indexes a conversation about several topics and checks that:
+#   - the embedder is deterministic and gives texts sharing words similar vectors
+#   - a question finds the messages about its topic (at most k, in chronological order)
+#   - messages at or after the search position (the recent window) are never returned
+#   - a question sharing no words with the history finds nothing
+#   - vectors of the wrong length are rejected
+#
+# Usage (from src/): ./retrieval-check.sh
+# Requires Java 21+ (javac, java).
+set -euo pipefail
+
+SRC_DIR=$(cd "$(dirname "$0")" && pwd)
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+. "$SRC_DIR/bench-common.sh"
+
+compile_server "$WORK_DIR/classes"
+cd "$WORK_DIR"
+
+cat > RetrievalCheck.java <<'EOF'
+import java.util.Arrays;
+import java.util.List;
+import server.HashingEmbedder;
+import server.VectorIndex;
+
+public class RetrievalCheck {
+    static int failures;
+
+    static void check(String name, boolean ok, Object detail) {
+        System.out.println((ok ? "ok   " : "FAIL ") + name + (ok ? "" : " -> " + detail));
+        if (!ok) failures++;
+    }
+
+    public static void main(String[] args) {
+        String[] history = {
+                "alice: the deploy pipeline failed again on the staging server",         // 0
+                "bob: how do I reset my password for the wiki",                           // 1
+                "alice: lunch at the pizza place today?",                                 // 2
+                "Bot: you can reset your password from the wiki login page",              // 3
+                "carol: the staging server ran out of disk during the deploy",            // 4
+                "bob: pizza sounds good, noon works",                                     // 5
+                "carol: password reset emails are not arriving, the wiki mail queue is stuck", // 6
+                "alice: deploy fixed after cleaning the disk on staging",                 // 7
+        };
+        HashingEmbedder embedder = new HashingEmbedder(256);
+        VectorIndex index = new VectorIndex();
+        for (int i = 0; i < history.length; i++) {
+            index.add(i, embedder.embed(history[i], 0));
+        }
+        check("all messages indexed", index.size() == history.length, index.size());
+
+        float[] a = embedder.embed("Reset the wiki password", 0);
+        float[] b = embedder.embed("reset the WIKI password!", 0);
+        check("embedder is deterministic and case/punctuation insensitive", Arrays.equals(a, b), "vectors differ");
+        check("embedder has the configured dimensions", a.length == 256, a.length);
+
+        List<Integer> password = index.search(embedder.embed("my wiki password reset does not work", 0), 3, history.length);
+        check("password question finds the password messages", password.equals(List.of(1, 3, 6)), password);
+
+        List<Integer> deploy = index.search(embedder.embed("why did the deploy to staging fail", 0), 2, history.length);
+        check("deploy question finds deploy messages (k = 2)",
+                deploy.size() == 2 && deploy.stream().allMatch(p -> p == 0 || p == 4 || p == 7), deploy);
+        check("results are in chronological order", deploy.equals(deploy.stream().sorted().toList()), deploy);
+
+        List<Integer> before = index.search(embedder.embed("wiki password reset", 0), 5, 4);
+        check("recent window is excluded", before.stream().allMatch(p -> p < 4) && before.containsAll(List.of(1, 3)), before);
+
+        List<Integer> unrelated = index.search(embedder.embed("quantum chromodynamics", 0), 3, history.length);
+        check("unrelated question finds nothing", unrelated.isEmpty(), unrelated);
+
+        boolean rejected = false;
+        try {
+            index.add(history.length, new float[16]);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check("vector of the wrong length is rejected", rejected, "no exception");
+
+        System.out.println(failures == 0 ? "PASS: retrieval works" : "FAIL: " + failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
+EOF
+
+javac -cp classes -d classes RetrievalCheck.java
+java -cp classes RetrievalCheck
@@ -0,0 +1,25 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A language model that AI rooms can use to generate answers
+ * (e.g. a local ollama command or an ollama HTTP endpoint).
+ * Implementations must be safe to call from several workers at once.
+ */
+public interface AiBackend {
+
+    /**
+     * Generates an answer to the prompt.
+     * @param prompt full prompt, including the conversation
+     * @param timeoutMillis time left before the request's deadline
+     * @return the generated text
+     * @throws IOException if the model cannot be reached or fails
+     * @throws TimeoutException if no answer arrived in time
+     */
+    String generate(String prompt, long timeoutMillis) throws IOException, TimeoutException;
+
+    // Short description used in logs and statistics
+    String describe();
+}
@@ -1,15 +1,21 @@
 package server;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.lang.ProcessBuilder;
 import java.lang.StringBuilder;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
-// AI-enhanced chat room that automatically generates bot responses using a language model (via Ollama)
+// AI-enhanced chat room that automatically generates bot responses using a language model (via Ollama).
+// Model requests go through the server-wide AiWorkerPool, which limits and fairly schedules them.
+// The prompt holds the latest messages plus the older ones most relevant to the question,
+// found in a vector index of the history, so it stays small however long the room lives.
 public class AiChatRoom extends ChatRoom {
+    private static final int MAX_EMBEDDINGS_PER_ANSWER = 512; // Bounds the catch-up work of one answer on long histories
     private final String prompt; // Prompt used to guide the AI model's behavior
+    private final VectorIndex index = new VectorIndex(); // Embeddings of the chat and bot messages
+    private final ReentrantLock indexLock = new ReentrantLock(); // Protects index and indexedUpTo
+    private int indexedUpTo; // History positions before this one are indexed (or not worth indexing)
 
     // Constructor: initializes the room with a name and a prompt
     public AiChatRoom(String name, String prompt) {
@@ -19,52 +25,93 @@ public class AiChatRoom extends ChatRoom {
 
     // Override broadcast to also generate a bot response if the message is from a user
     @Override
-    public void broadcast(String message) {
+    public void broadcast(ChatMessage message) {
         super.broadcast(message); // Broadcast to all participants as usual
 
-        // Only generate a response if the message is not from the bot itself
-        if (!message.startsWith("Bot:")) {
+        // Only user chat is answered: not bot answers, notices, or users leaving
+        if (message.getType() == ChatMessage.Type.CHAT) {
             generateBotResponse(); // Trigger AI response
         }
     }
 
-    // Method to generate a bot response using the external "ollama" command
+    // Queues a bot response; the sender does not wait for the model
     private void generateBotResponse() {
-        String context;
-        List<String> messages = this.getMessages(); // Get full chat history
-
-        // Build context with initial prompt and chat conversation
-        StringBuilder fullContext = new StringBuilder(prompt + "\n\nConversation so far:\n");
-        for (String msg : messages) {
-            fullContext.append(msg).append("\n");
+        boolean queued = ServerMain.getAiPool().submit(getName(), this::buildContext,
+                response -> super.broadcast(AiWorkerPool.isNotice(response)
+                        ? ChatMessage.info(response) // Timeout/error notice, not something the bot said
+                        : ChatMessage.bot(response)));
+        if (!queued) {
+            super.broadcast(ChatMessage.info("[The AI is busy with this room, please wait for its answers]"));
         }
+    }
 
-        try {
-            // Prepare to launch the AI model using the command: `ollama run llama2`
-            ProcessBuilder pb = new ProcessBuilder("ollama", "run", "llama2");
-            Process process = pb.start();
-
-            // Write full context to AI process input
-            PrintWriter writer = new PrintWriter(process.getOutputStream(), true);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    // Builds the model input when the request runs: the prompt, the relevant older
+    // messages (in chronological order) and the latest messages.
+    // Retrieval may use at most half of the time left before the deadline, so the model
+    // keeps the rest; past that, the answer is built from the latest messages only.
+    private String buildContext(long deadlineMillis) {
+        long now = System.currentTimeMillis();
+        long retrievalDeadline = now + Math.max(0, deadlineMillis - now) / 2;
+        AiWorkerPool pool = ServerMain.getAiPool();
+        int count = getMessageCount();
+        int recentFrom = Math.max(0, count - pool.getRecentMessages());
+        List<ChatMessage> recent = getMessageRange(recentFrom, count);
 
-            writer.println(fullContext.toString()); // Send conversation context to model
-            writer.close(); // Close input stream to signal end of input
+        StringBuilder fullContext = new StringBuilder(prompt + "\n\n");
+        if (recentFrom > 0 && pool.getRetrievedMessages() > 0) {
+            List<ChatMessage> relevant = retrieve(pool.getEmbedder(), pool.getRetrievedMessages(), recentFrom, count, recent,
+                    retrievalDeadline);
+            if (!relevant.isEmpty()) {
+                fullContext.append("Relevant earlier messages:\n");
+                for (ChatMessage message : relevant) {
+                    fullContext.append(message.format()).append("\n");
+                }
+                fullContext.append("\n");
+            }
+        }
+        fullContext.append(recentFrom > 0 ? "Latest messages:\n" : "Conversation so far:\n");
+        for (ChatMessage message : recent) {
+            fullContext.append(message.format()).append("\n");
+        }
+        return fullContext.toString();
+    }
 
-            // Read AI-generated response from the model's output
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line).append(" ");
+    // Brings the index up to date with the history (as far as the deadline allows), then
+    // returns the k messages before the recent window that are most similar to the latest question
+    private List<ChatMessage> retrieve(Embedder embedder, int k, int recentFrom, int count, List<ChatMessage> recent,
+                                       long deadlineMillis) {
+        indexLock.lock();
+        try {
+            int end = Math.min(count, indexedUpTo + MAX_EMBEDDINGS_PER_ANSWER);
+            for (ChatMessage message : getMessageRange(indexedUpTo, end)) {
+                ChatMessage.Type type = message.getType();
+                if (type == ChatMessage.Type.CHAT || type == ChatMessage.Type.BOT) {
+                    long remaining = deadlineMillis - System.currentTimeMillis();
+                    if (remaining <= 0) break; // Out of time: the next answer continues the catch-up
+                    index.add(indexedUpTo, embedder.embed(message.getText(), remaining));
+                }
+                indexedUpTo++;
             }
 
-            // Broadcast AI response to all room participants
-            super.broadcast("Bot: " + response.toString().trim());
+            List<ChatMessage> relevant = new ArrayList<>();
+            float[] query = embedder.embed(question(recent), deadlineMillis - System.currentTimeMillis());
+            for (int position : index.search(query, k, recentFrom)) {
+                relevant.addAll(getMessageRange(position, position + 1));
+            }
+            return relevant;
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            System.err.println("AI retrieval failed in " + getName() + " (" + embedder.describe() + "): " + e.getMessage());
+            return List.of(); // Answer from the latest messages only
+        } finally {
+            indexLock.unlock();
+        }
+    }
 
-        } catch (Exception e) {
-            // Handle errors gracefully and notify users
-            super.broadcast("Bot: [Error generating response]");
-            System.err.println("AI Error: " + e.getMessage());
+    // Returns the text to search for: the latest user message
+    private String question(List<ChatMessage> recent) {
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            if (recent.get(i).getType() == ChatMessage.Type.CHAT) return recent.get(i).getText();
         }
+        return "";
     }
 }
@@ -0,0 +1,362 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Global execution service for AI rooms.
+ * At most {@code concurrency} model requests run at once, spread over the configured
+ * backends (worker i uses backend i mod backends). Waiting requests are kept in one
+ * queue per room and dispatched by weighted fair queuing: every request gets a virtual
+ * finish time max(V, room's last finish) + 1/weight, and the smallest one runs next,
+ * so a chatty room cannot starve the others. V is the finish time of the last
+ * dispatched request (self-clocked fair queuing).
+ *
+ * Every request has a deadline; if it expires while queued, while its prompt is built
+ * or while the model runs, the room gets a timeout message instead of an answer.
+ * Queued requests are expired by a reaper thread as soon as their deadline passes, so
+ * the notice does not wait for a free worker and the request's queue slot is released.
+ *
+ * Configuration file, one setting per line ('#' starts a comment):
+ *   concurrency 2                         max model requests running at once
+ *   deadline 120                          seconds from the message to the answer
+ *   queue 8                               max waiting requests per room
+ *   backend process llama2                "ollama run llama2"
+ *   backend http http://host:11434 llama2 ollama HTTP API
+ *   weight AI:support 3                   share of a room (default 1)
+ *   embedding http http://host:11434 nomic-embed-text  ollama embedding model
+ *   embedding hash 256                    deterministic local embedder (used when none is configured)
+ *   recent 12                             latest messages always put in the prompt
+ *   retrieve 6                            older messages picked by similarity
+ */
+public class AiWorkerPool {
+    public static final String TIMEOUT_MESSAGE = "[The AI did not answer in time]";
+    public static final String ERROR_MESSAGE = "[Error generating response]";
+
+    private final List<AiBackend> backends;
+    private final int concurrency;
+    private final long deadlineMillis;
+    private final int maxQueuedPerRoom;
+    private final Map<String, Integer> weights;
+    // Prompt building for AI rooms (retrieval of relevant history)
+    private Embedder embedder = new HashingEmbedder(256); // Fallback when ai.txt configures no embedding model
+    private int recentMessages = 12;
+    private int retrievedMessages = 6;
+
+    private final Map<String, RoomQueue> queues = new HashMap<>(); // Room name -> waiting requests
+    private final ReentrantLock lock = new ReentrantLock(); // Protects queues and statistics
+    private final Condition available = lock.newCondition(); // Signalled when a request is queued
+    private final Condition submitted = lock.newCondition(); // Signalled to the reaper when a request is queued
+    private double virtualTime; // Finish time of the last dispatched request
+    private int queued; // Waiting requests over all rooms
+    private int running;
+    private long dispatched, completed, timedOut, failed, rejected;
+    private long totalWaitMillis, maxWaitMillis;
+
+    // A model request waiting for a worker
+    private static class Request {
+        final String room;
+        final LongFunction<String> prompt; // Built when the request runs (given the deadline), so it sees the latest messages
+        final Consumer<String> reply; // Receives the answer, or a timeout/error message
+        final long submittedMillis;
+        final long deadlineMillis;
+        double finish; // Virtual finish time
+
+        Request(String room, LongFunction<String> prompt, Consumer<String> reply, long submittedMillis, long deadlineMillis) {
+            this.room = room;
+            this.prompt = prompt;
+            this.reply = reply;
+            this.submittedMillis = submittedMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    // Waiting requests of one room
+    private static class RoomQueue {
+        final ArrayDeque<Request> pending = new ArrayDeque<>();
+        double lastFinish; // Virtual finish time of the room's latest request
+    }
+
+    public AiWorkerPool(List<AiBackend> backends, int concurrency, long deadlineMillis,
+                        int maxQueuedPerRoom, Map<String, Integer> weights) {
+        if (backends.isEmpty()) throw new IllegalArgumentException("No AI backend configured");
+        if (concurrency < 1) throw new IllegalArgumentException("AI concurrency must be at least 1");
+        this.backends = List.copyOf(backends);
+        this.concurrency = concurrency;
+        this.deadlineMillis = deadlineMillis;
+        this.maxQueuedPerRoom = maxQueuedPerRoom;
+        this.weights = Map.copyOf(weights);
+    }
+
+    /**
+     * Reads the pool configuration; without a file, a single "ollama run llama2"
+     * backend with two workers is used.
+     * @param path path to the configuration file
+     * @return the configured (not yet started) pool
+     * @throws IOException if the file contains an invalid line
+     */
+    public static AiWorkerPool fromFile(String path) throws IOException {
+        List<AiBackend> backends = new ArrayList<>();
+        Map<String, Integer> weights = new HashMap<>();
+        int concurrency = 2;
+        long deadline = 120_000;
+        int queue = 8;
+        Embedder embedder = null;
+        int recent = -1;
+        int retrieve = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\s+");
+                try {
+                    switch (parts[0]) {
+                        case "concurrency" -> concurrency = Integer.parseInt(parts[1]);
+                        case "deadline" -> deadline = Long.parseLong(parts[1]) * 1000;
+                        case "queue" -> queue = Integer.parseInt(parts[1]);
+                        case "weight" -> weights.put(parts[1], Math.max(1, Integer.parseInt(parts[2])));
+                        case "backend" -> backends.add(switch (parts[1]) {
+                            case "process" -> new OllamaProcessBackend(parts[2]);
+                            case "http" -> new OllamaHttpBackend(parts[2], parts[3]);
+                            default -> throw new IOException("Unknown AI backend type: " + parts[1]);
+                        });
+                        case "embedding" -> embedder = switch (parts[1]) {
+                            case "hash" -> new HashingEmbedder(Integer.parseInt(parts[2]));
+                            case "http" -> new OllamaEmbedder(parts[2], parts[3]);
+                            default -> throw new IOException("Unknown embedding type: " + parts[1]);
+                        };
+                        case "recent" -> recent = Integer.parseInt(parts[1]);
+                        case "retrieve" -> retrieve = Integer.parseInt(parts[1]);
+                        default -> throw new IOException("Unknown AI setting: " + line);
+                    }
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    throw new IOException("Invalid AI setting: " + line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No configuration: keep the defaults
+        }
+        if (backends.isEmpty()) backends.add(new OllamaProcessBackend("llama2"));
+        AiWorkerPool pool = new AiWorkerPool(backends, concurrency, deadline, queue, weights);
+        if (embedder != null) pool.embedder = embedder;
+        if (recent >= 1) pool.recentMessages = recent;
+        if (retrieve >= 0) pool.retrievedMessages = retrieve;
+        return pool;
+    }
+
+    // Starts the workers (virtual threads, each bound to one backend) and the reaper
+    public void start() {
+        for (int i = 0; i < concurrency; i++) {
+            AiBackend backend = backends.get(i % backends.size());
+            Thread.startVirtualThread(() -> work(backend));
+        }
+        Thread.startVirtualThread(this::reap);
+        System.out.println("AI pool: " + concurrency + " workers on " + backends.size() + " backend(s)");
+    }
+
+    /**
+     * Queues a model request for a room.
+     * @param room name of the room (its queue and weight)
+     * @param prompt builds the prompt when the request runs; gets the deadline (epoch millis),
+     *               which bounds any slow preparation such as embedding the history
+     * @param reply receives the answer, or a timeout/error message
+     * @return false if the room already has too many waiting requests
+     */
+    public boolean submit(String room, LongFunction<String> prompt, Consumer<String> reply) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            RoomQueue queue = queues.computeIfAbsent(room, name -> new RoomQueue());
+            if (queue.pending.size() >= maxQueuedPerRoom) {
+                rejected++;
+                return false;
+            }
+            Request request = new Request(room, prompt, reply, now, now + deadlineMillis);
+            request.finish = Math.max(virtualTime, queue.lastFinish) + 1.0 / weights.getOrDefault(room, 1);
+            queue.lastFinish = request.finish;
+            queue.pending.add(request);
+            queued++;
+            available.signal();
+            submitted.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Worker loop: takes the next fair request and runs it on the worker's backend
+    private void work(AiBackend backend) {
+        while (true) {
+            Request request;
+            try {
+                request = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            String answer = run(request, backend);
+            request.reply.accept(answer);
+        }
+    }
+
+    // Waits for a request and removes the one with the smallest virtual finish time
+    private Request take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued == 0) {
+                available.await();
+            }
+            RoomQueue next = null;
+            for (RoomQueue queue : queues.values()) {
+                if (queue.pending.isEmpty()) continue;
+                if (next == null || queue.pending.peek().finish < next.pending.peek().finish) next = queue;
+            }
+            Request request = next.pending.poll();
+            queued--;
+            running++;
+            virtualTime = request.finish;
+
+            long wait = System.currentTimeMillis() - request.submittedMillis;
+            dispatched++;
+            totalWaitMillis += wait;
+            maxWaitMillis = Math.max(maxWaitMillis, wait);
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reaper loop: sleeps until the earliest deadline of the queued requests, then answers
+    // the expired ones with the timeout message (outside the lock, since replies post to rooms)
+    private void reap() {
+        while (true) {
+            List<Request> expired = new ArrayList<>();
+            lock.lock();
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    long earliest = removeExpired(now, expired);
+                    if (!expired.isEmpty()) break;
+                    if (earliest == Long.MAX_VALUE) {
+                        submitted.await();
+                    } else {
+                        submitted.await(earliest - now, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            for (Request request : expired) {
+                request.reply.accept(TIMEOUT_MESSAGE);
+            }
+        }
+    }
+
+    // Removes the queued requests whose deadline passed (called with the lock held) and
+    // returns the earliest deadline left, or Long.MAX_VALUE if nothing is queued.
+    // Deadlines grow in submission order, so expired requests are at the head of their queue.
+    private long removeExpired(long now, List<Request> expired) {
+        long earliest = Long.MAX_VALUE;
+        for (RoomQueue queue : queues.values()) {
+            while (!queue.pending.isEmpty() && queue.pending.peek().deadlineMillis <= now) {
+                expired.add(queue.pending.poll());
+                queued--;
+                timedOut++;
+            }
+            if (!queue.pending.isEmpty()) earliest = Math.min(earliest, queue.pending.peek().deadlineMillis);
+        }
+        return earliest;
+    }
+
+    // Runs a request within its deadline and returns the text to post in the room
+    private String run(Request request, AiBackend backend) {
+        String answer;
+        int outcome; // 0 completed, 1 timed out, 2 failed
+        try {
+            if (request.deadlineMillis <= System.currentTimeMillis()) {
+                throw new TimeoutException(); // Expired while queued: do not spend model time on it
+            }
+            String prompt = request.prompt.apply(request.deadlineMillis);
+            long remaining = request.deadlineMillis - System.currentTimeMillis(); // Building the prompt took time too
+            if (remaining <= 0) throw new TimeoutException();
+            answer = backend.generate(prompt, remaining);
+            outcome = 0;
+        } catch (TimeoutException e) {
+            answer = TIMEOUT_MESSAGE;
+            outcome = 1;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("AI Error (" + backend.describe() + "): " + e.getMessage());
+            answer = ERROR_MESSAGE;
+            outcome = 2;
+        }
+
+        lock.lock();
+        try {
+            running--;
+            switch (outcome) {
+                case 0 -> completed++;
+                case 1 -> timedOut++;
+                default -> failed++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return answer;
+    }
+
+    // Returns true if the reply is a timeout/error notice rather than a model answer
+    public static boolean isNotice(String reply) {
+        return reply.equals(TIMEOUT_MESSAGE) || reply.equals(ERROR_MESSAGE);
+    }
+
+    // Returns the embedder used to index and search room histories
+    public Embedder getEmbedder() {
+        return embedder;
+    }
+
+    // Returns how many of the latest messages always go into the prompt
+    public int getRecentMessages() {
+        return recentMessages;
+    }
+
+    // Returns how many older messages are retrieved by similarity (0 disables retrieval)
+    public int getRetrievedMessages() {
+        return retrievedMessages;
+    }
+
+    // Returns a one-line summary of the queues and counters (shown by /aistats)
+    public String getStats() {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            StringBuilder rooms = new StringBuilder();
+            for (Map.Entry<String, RoomQueue> entry : queues.entrySet()) {
+                ArrayDeque<Request> pending = entry.getValue().pending;
+                if (pending.isEmpty()) continue;
+                rooms.append(rooms.isEmpty() ? "" : ", ").append(entry.getKey()).append('=').append(pending.size())
+                        .append(" (oldest ").append(now - pending.peek().submittedMillis).append(" ms)");
+            }
+            return "AI queue: " + queued + " waiting" + (rooms.isEmpty() ? "" : " [" + rooms + "]")
+                    + ", " + running + "/" + concurrency + " running"
+                    + ", wait avg " + (dispatched == 0 ? 0 : totalWaitMillis / dispatched) + " ms max " + maxWaitMillis + " ms"
+                    + ", " + completed + " answered, " + timedOut + " timed out, " + failed + " failed, " + rejected + " rejected";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
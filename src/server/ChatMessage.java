@@ -0,0 +1,188 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A single chat event kept in compact form: interned user id, type tag,
+ * timestamp and UTF-8 body. The human-readable line (e.g. "alice: hello")
+ * is only built by {@link #format()} when the message is sent or saved.
+ */
+public final class ChatMessage {
+    // Kind of message; the order is part of the stored format, only append new types
+    public enum Type { CHAT, JOIN, LEAVE, BOT, INFO }
+
+    private static final Type[] TYPES = Type.values();
+    private static final int NO_USER = 0; // User id for messages without a sender (bot, info)
+
+    // Interned user names shared by all rooms: id -> name and name -> id
+    private static final List<String> userNames = new ArrayList<>(List.of(""));
+    private static final Map<String, Integer> userIds = new HashMap<>(Map.of("", NO_USER));
+    private static final ReentrantReadWriteLock userLock = new ReentrantReadWriteLock();
+
+    private final int userId;
+    private final Type type;
+    private final long timestamp;
+    private final byte[] body;
+
+    ChatMessage(int userId, Type type, long timestamp, byte[] body) {
+        this.userId = userId;
+        this.type = type;
+        this.timestamp = timestamp;
+        this.body = body;
+    }
+
+    // Factory methods for each kind of message, timestamped now
+    public static ChatMessage chat(String username, String text) {
+        return new ChatMessage(internUser(username), Type.CHAT, System.currentTimeMillis(), encode(text));
+    }
+
+    public static ChatMessage join(String username) {
+        return new ChatMessage(internUser(username), Type.JOIN, System.currentTimeMillis(), new byte[0]);
+    }
+
+    public static ChatMessage leave(String username) {
+        return new ChatMessage(internUser(username), Type.LEAVE, System.currentTimeMillis(), new byte[0]);
+    }
+
+    public static ChatMessage bot(String text) {
+        return new ChatMessage(NO_USER, Type.BOT, System.currentTimeMillis(), encode(text));
+    }
+
+    public static ChatMessage info(String text) {
+        return new ChatMessage(NO_USER, Type.INFO, System.currentTimeMillis(), encode(text));
+    }
+
+    // Getters
+    public Type getType() { return type; }
+    public long getTimestamp() { return timestamp; }
+    public String getUsername() { return userName(userId); }
+    public String getText() { return new String(body, StandardCharsets.UTF_8); }
+    int getUserId() { return userId; }
+    byte[] getBody() { return body; }
+
+    // Builds the line shown to clients
+    public String format() {
+        return format(type, userId, getText());
+    }
+
+    static String format(Type type, int userId, String text) {
+        return hasText(type) ? header(type, userId) + text : header(type, userId);
+    }
+
+    // Part of the client line that comes before the text (the whole line for JOIN and LEAVE)
+    static String header(Type type, int userId) {
+        return switch (type) {
+            case CHAT -> userName(userId) + ": ";
+            case JOIN -> "[" + userName(userId) + " enters the room]";
+            case LEAVE -> "[" + userName(userId) + " leaves the room]";
+            case BOT -> "Bot: ";
+            case INFO -> "";
+        };
+    }
+
+    // Returns whether the client line of this type shows the message text
+    static boolean hasText(Type type) {
+        return type != Type.JOIN && type != Type.LEAVE;
+    }
+
+    /**
+     * Serializes the message for history files and cluster links.
+     * Format: timestamp TAB type TAB username TAB body
+     */
+    public String toRecordString() {
+        return timestamp + "\t" + type + "\t" + userName(userId) + "\t" + getText();
+    }
+
+    /**
+     * Parses a line written by {@link #toRecordString()}.
+     * Lines in the old history format (already formatted text) are converted to the matching type.
+     * @param line stored line
+     * @return the parsed message
+     */
+    public static ChatMessage fromRecordString(String line) {
+        String[] parts = line.split("\t", 4);
+        if (parts.length == 4) {
+            try {
+                long timestamp = Long.parseLong(parts[0]);
+                Type type = Type.valueOf(parts[1]);
+                int userId = internUser(parts[2]);
+                return new ChatMessage(userId, type, timestamp, encode(parts[3]));
+            } catch (IllegalArgumentException e) {
+                // Not a record line, fall back to the old format
+            }
+        }
+        return fromFormatted(line);
+    }
+
+    // Recovers the structure of an already formatted line (old history files)
+    private static ChatMessage fromFormatted(String line) {
+        if (line.startsWith("[") && line.endsWith(" enters the room]")) {
+            return new ChatMessage(internUser(line.substring(1, line.length() - 17)), Type.JOIN, 0, new byte[0]);
+        }
+        if (line.startsWith("[") && line.endsWith(" leaves the room]")) {
+            return new ChatMessage(internUser(line.substring(1, line.length() - 17)), Type.LEAVE, 0, new byte[0]);
+        }
+        if (line.startsWith("Bot: ")) {
+            return new ChatMessage(NO_USER, Type.BOT, 0, encode(line.substring(5)));
+        }
+        int separator = line.indexOf(": ");
+        if (separator > 0) {
+            return new ChatMessage(internUser(line.substring(0, separator)), Type.CHAT, 0, encode(line.substring(separator + 2)));
+        }
+        return new ChatMessage(NO_USER, Type.INFO, 0, encode(line));
+    }
+
+    // Returns the id of a user name, assigning a new one on first use
+    static int internUser(String username) {
+        userLock.readLock().lock();
+        try {
+            Integer id = userIds.get(username);
+            if (id != null) return id;
+        } finally {
+            userLock.readLock().unlock();
+        }
+        userLock.writeLock().lock();
+        try {
+            return userIds.computeIfAbsent(username, name -> {
+                userNames.add(name);
+                return userNames.size() - 1;
+            });
+        } finally {
+            userLock.writeLock().unlock();
+        }
+    }
+
+    // Returns the name of an interned user id
+    static String userName(int userId) {
+        userLock.readLock().lock();
+        try {
+            return userNames.get(userId);
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    // Returns the id of a user name, or -1 if it was never interned
+    static int findUser(String username) {
+        userLock.readLock().lock();
+        try {
+            return userIds.getOrDefault(username, -1);
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    // Type from its stored tag
+    static Type typeOf(byte tag) {
+        return TYPES[tag];
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
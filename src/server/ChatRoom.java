@@ -5,16 +5,28 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 // This class represents a chat room that supports multiple participants
 // and maintains a history of messages. It is thread-safe.
+// The saved history is loaded in the background: new messages are accepted right away,
+// while reading the history waits until it is complete.
 public class ChatRoom {
     private final String name; // Name of the chat room
-    private final List<String> messages = new ArrayList<>(); // Message history
-    private final Set<PrintWriter> participants = new HashSet<>(); // Active participants (output streams)
+    private MessageLog messages = new MessageLog(); // Message history (compact records)
+    private final CountDownLatch historyLoaded = new CountDownLatch(1); // Released once the history is complete
+    private final AtomicBoolean loadStarted = new AtomicBoolean(); // Set by whoever loads the saved history
+    private static final Semaphore LOAD_PERMITS = new Semaphore(Runtime.getRuntime().availableProcessors());
+    private static final int HISTORY_CHUNK_BYTES = 16 * 1024; // History replay is queued in chunks of one TLS record
+    private static final int SNAPSHOT_CHUNK_MESSAGES = 256; // Messages copied per lock hold when bootstrapping a mirror
+    private final Map<ClientConnection, String> participants = new HashMap<>(); // Active participants: connection -> username (a user may log in twice)
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Lock to handle concurrent access
 
     // Constructor: creates a chat room with a given name
@@ -23,46 +35,256 @@ public class ChatRoom {
     }
 
     // Adds a user to the room and logs their entry in the message history
-    public void join(PrintWriter out, String username) {
+    // (once, when the user was not already in the room on another connection)
+    public void join(ClientConnection out, String username) {
         lock.writeLock().lock();
         try {
-            participants.add(out); // Add user's output stream
-            messages.add("[" + username + " enters the room]"); // Record entry in message history
-            
+            if (addParticipant(out, username)) {
+                record(ChatMessage.join(username)); // Record entry in message history
+            }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    // Removes a user from the room and broadcasts that they left
-    public void leave(PrintWriter out, String username) {
+    // Removes a user's connection from the room and broadcasts that they left
+    // (only when no other connection of the user is still in the room)
+    public void leave(ClientConnection out, String username) {
         lock.writeLock().lock();
         try {
-            participants.remove(out); // Remove user's output stream
-            broadcast("[" + username + " leaves the room]"); // Notify others
+            if (removeParticipant(out, username)) {
+                broadcast(ChatMessage.leave(username)); // Notify others
+            }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
     // Sends a message to all current participants and stores it in the history
-    public void broadcast(String message) {
-        lock.readLock().lock();
+    public void broadcast(ChatMessage message) {
+        lock.writeLock().lock(); // Exclusive, so history and replicas see messages in the same order
+        try {
+            deliver(message);
+            ClusterNode cluster = ServerMain.getCluster();
+            if (cluster != null) {
+                cluster.relayDeliver(name, message); // Forward to mirrors on other nodes
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Stores a message in the history without sending it to participants
+    public void record(ChatMessage message) {
+        lock.writeLock().lock();
+        try {
+            messages.add(message);
+            ClusterNode cluster = ServerMain.getCluster();
+            if (cluster != null) {
+                cluster.relayAppend(name, message); // Keep mirrors' history complete
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Stores a message and sends it to the local participants only (no replication)
+    protected void deliver(ChatMessage message) {
+        lock.writeLock().lock();
         try {
             messages.add(message); // Save the message
-            for (PrintWriter out : participants) {
-                out.println(message); // Send to each participant
+            sendToParticipants(message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Sends a message to the local participants without storing it
+    protected void sendToParticipants(ChatMessage message) {
+        lock.writeLock().lock();
+        try {
+            ByteBuffer payload = ClientConnection.encodeLine(tag(message.format())); // Formatted and encoded once for all participants
+            Iterator<ClientConnection> it = participants.keySet().iterator();
+            while (it.hasNext()) {
+                ClientConnection out = it.next();
+                if (out.checkError()) {
+                    it.remove(); // Dead connection: stop writing to it
+                    continue;
+                }
+                out.write(payload); // Send to each participant
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Stores a message in the local history only (no replication)
+    protected void append(ChatMessage message) {
+        lock.writeLock().lock();
+        try {
+            messages.add(message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Replaces the history held in memory (used by mirrors once a snapshot is complete)
+    protected void replaceHistory(MessageLog snapshot) {
+        lock.writeLock().lock();
+        try {
+            messages = snapshot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Adds or removes a local participant's connection without touching the history.
+    // Each returns true if it was the user's first (or last) connection in the room.
+    protected boolean addParticipant(ClientConnection out, String username) {
+        lock.writeLock().lock();
+        try {
+            boolean first = !participants.containsValue(username);
+            participants.put(out, username);
+            return first;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    protected boolean removeParticipant(ClientConnection out, String username) {
+        lock.writeLock().lock();
+        try {
+            participants.remove(out);
+            return !participants.containsValue(username);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Checks whether any local participant is in the room
+    protected boolean hasParticipants() {
+        lock.readLock().lock();
+        try {
+            return !participants.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Silently removes a participant whose connection dropped (the user may reconnect later)
+    public void disconnect(ClientConnection out, String username) {
+        removeParticipant(out, username);
+    }
+
+    // Passes every history message to a consumer (used to bootstrap mirrors on other nodes).
+    // Most of the history is passed in copied chunks to the consumer, which may block (e.g. on
+    // a full cluster link), without holding the lock. The last chunk goes to lockedConsumer,
+    // which must not block, and onEnd runs, both under the lock, so no message can be added
+    // between the snapshot and the live relays that follow.
+    // Stops without calling onEnd as soon as a consumer returns false.
+    public void sendHistory(Predicate<ChatMessage> consumer, Predicate<ChatMessage> lockedConsumer, Runnable onEnd) {
+        int position = 0;
+        while (true) {
+            List<ChatMessage> chunk = getMessageRange(position, position + SNAPSHOT_CHUNK_MESSAGES);
+            if (chunk.size() < SNAPSHOT_CHUNK_MESSAGES) break; // Close to the end: finish under the lock
+            for (ChatMessage message : chunk) {
+                if (!consumer.test(message)) return;
             }
+            position += chunk.size();
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = position; i < messages.size(); i++) {
+                if (!lockedConsumer.test(messages.get(i))) return;
+            }
+            onEnd.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Streams the history to a client, each line tagged with the room name. Records are
+    // encoded straight from the message arena into record-sized chunks under the read lock,
+    // without building lists of lines. The lock is released between chunks while the
+    // client's writer catches up, so a slow client never holds up the room.
+    public void replayHistory(ClientConnection out) {
+        awaitHistory();
+        byte[] prefix = tag("").getBytes(StandardCharsets.UTF_8);
+        int position = 0;
+        int end;
+        lock.readLock().lock();
+        try {
+            end = messages.size(); // Later messages reach the client as live broadcasts
         } finally {
             lock.readLock().unlock();
         }
+        while (position < end && !out.checkError()) {
+            out.awaitCapacity();
+            ByteBuffer chunk = ByteBuffer.allocate(HISTORY_CHUNK_BYTES); // Queued by reference, so one per chunk
+            lock.readLock().lock();
+            try {
+                int next = messages.encodeLines(position, end, prefix, ClientConnection.LINE_SEPARATOR, chunk);
+                if (next == position) {
+                    out.println(tag(messages.format(position))); // A single line longer than a chunk
+                    next++;
+                }
+                position = next;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (chunk.position() > 0) out.write(chunk.flip().asReadOnlyBuffer());
+        }
+        out.flush();
     }
 
-    // Returns a copy of the message history
-    public List<String> getMessages() {
+    // Returns the number of messages in the history
+    public int getMessageCount() {
+        awaitHistory();
         lock.readLock().lock();
         try {
-            return new ArrayList<>(messages); // Defensive copy
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns the history messages in positions [from, to) (positions never change once the history is loaded)
+    public List<ChatMessage> getMessageRange(int from, int to) {
+        awaitHistory();
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> result = new ArrayList<>(Math.max(0, to - from));
+            for (int i = Math.max(0, from); i < Math.min(to, messages.size()); i++) {
+                result.add(messages.get(i));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Prefixes a line with the room name, since a connection may follow several rooms
+    public String tag(String line) {
+        return "[" + name + "] " + line;
+    }
+
+    // Returns the messages sent by the given user
+    public List<ChatMessage> getMessagesFrom(String username) {
+        awaitHistory();
+        lock.readLock().lock();
+        try {
+            return messages.findByUser(username);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns the messages of the given type (e.g. only bot answers)
+    public List<ChatMessage> getMessagesOfType(ChatMessage.Type type) {
+        awaitHistory();
+        lock.readLock().lock();
+        try {
+            return messages.findByType(type);
         } finally {
             lock.readLock().unlock();
         }
@@ -73,11 +295,13 @@ public class ChatRoom {
         return name;
     }
 
-    // Re-adds a participant's new connection (used during reconnection)
-    public void rejoin(PrintWriter out, String username) {
+    // Re-adds a participant's new connection (used during reconnection), replacing the
+    // session's previous connection (null if none) but not other logins of the same user
+    public void rejoin(ClientConnection out, ClientConnection previous, String username) {
         lock.writeLock().lock();
         try {
-            participants.add(out); // Re-add output stream
+            if (previous != null) participants.remove(previous);
+            participants.put(out, username);
             // No broadcast message, since this is a silent reconnection
         } finally {
             lock.writeLock().unlock();
@@ -86,10 +310,11 @@ public class ChatRoom {
     
     // Saves the chat history to a file named based on the room name
     public void saveMessagesToFile() {
+        awaitHistory(); // Never overwrite the file with a partial history
         lock.readLock().lock();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter("chat_" + name + ".txt"))) {
-            for (String msg : messages) {
-                writer.write(msg);
+            for (int i = 0; i < messages.size(); i++) {
+                writer.write(messages.get(i).toRecordString());
                 writer.newLine();
             }
         } catch (IOException e) {
@@ -99,18 +324,66 @@ public class ChatRoom {
         }
     }
 
-    // Loads chat history from a file if it exists
+    // Loads chat history from a file if it exists.
+    // The file is parsed without holding the lock, so the room stays usable meanwhile;
+    // messages added in the meantime are kept after the saved ones.
     public void loadMessagesFromFile() {
-        lock.writeLock().lock();
-        try (BufferedReader reader = new BufferedReader(new FileReader("chat_" + name + ".txt"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                messages.add(line); // Restore past messages
+        try {
+            MessageLog loaded = new MessageLog();
+            try (BufferedReader reader = new BufferedReader(new FileReader("chat_" + name + ".txt"))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    loaded.add(ChatMessage.fromRecordString(line)); // Restore past messages (old text format is accepted)
+                    if (loaded.size() % 1024 == 0) {
+                        Thread.yield(); // Let client handlers run while large histories load
+                    }
+                }
+            } catch (IOException e) {
+                // Do nothing if the file doesn't exist — this is expected for a new room
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < messages.size(); i++) {
+                    loaded.add(messages.get(i));
+                }
+                messages = loaded;
+            } finally {
+                lock.writeLock().unlock();
             }
-        } catch (IOException e) {
-            // Do nothing if the file doesn't exist — this is expected for a new room
         } finally {
-            lock.writeLock().unlock();
+            historyComplete();
+        }
+    }
+
+    // Queues loading the saved history on a virtual thread. Rooms load in parallel, up to
+    // one per core, so client handlers still get CPU time during a warm start.
+    public void loadMessagesInBackground() {
+        Thread.startVirtualThread(() -> {
+            LOAD_PERMITS.acquireUninterruptibly();
+            try {
+                if (loadStarted.compareAndSet(false, true)) loadMessagesFromFile();
+            } finally {
+                LOAD_PERMITS.release();
+            }
+        });
+    }
+
+    // Marks the history as complete, releasing the readers waiting for it
+    private void historyComplete() {
+        historyLoaded.countDown();
+    }
+
+    // Waits until the history is complete (must not be called while holding the room lock).
+    // A history still queued for loading is loaded right away by the caller, who needs it now.
+    protected void awaitHistory() {
+        if (loadStarted.compareAndSet(false, true)) {
+            loadMessagesFromFile();
+        }
+        try {
+            historyLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
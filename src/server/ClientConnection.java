@@ -0,0 +1,282 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffered outbound side of a client connection.
+ * Lines are queued in memory and written to the socket in a single call,
+ * either when the queue grows past a threshold or shortly after the first
+ * unflushed line, so bursts of messages share one TLS record and one syscall
+ * instead of one per line (as with an autoflush PrintWriter).
+ *
+ * Only the connection's own writer (a virtual thread) touches the socket: callers,
+ * such as a room broadcasting under its lock, just queue a buffer and never block on
+ * a slow reader. A broadcast payload is queued by reference, so one message to many
+ * participants is encoded and stored once; the writer gathers the queued buffers into
+ * its reusable record buffer. The queue is bounded; a client that lets it overflow is
+ * disconnected instead of stalling the server.
+ * The writer uses the raw socket stream and a ReentrantLock rather than a Writer or
+ * monitors, which would pin its virtual thread (see {@link LineReader}).
+ */
+public class ClientConnection implements Closeable {
+    private static final int FLUSH_THRESHOLD = 16 * 1024; // Bytes that trigger an immediate flush (one TLS record)
+    private static final long FLUSH_DELAY_MILLIS = 2; // Max time a line waits in the buffer
+    private static final int MAX_BUFFERED = 1024 * 1024; // Unsent bytes before a client is considered too slow
+    private static final long WRITE_TIMEOUT_MILLIS = 10_000; // Max time a socket write may take before the client is dropped
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000; // Max time close() waits for pending data
+    static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final ReentrantLock lock = new ReentrantLock(); // Protects the buffers and flags
+    private final Condition dataAvailable = lock.newCondition(); // Signalled to the writer when there is work
+    private final Condition drained = lock.newCondition(); // Signalled by the writer after each write
+    private ArrayDeque<ByteBuffer> queue = new ArrayDeque<>(); // Filled by callers, possibly shared payloads
+    private ArrayDeque<ByteBuffer> sending = new ArrayDeque<>(); // Swapped with queue by the writer
+    private final byte[] record = new byte[FLUSH_THRESHOLD]; // Writer's gather buffer, reused for every write
+    private int count; // Bytes currently queued
+    private boolean flushRequested; // Write without waiting for the flush delay
+    private boolean writing; // Whether the writer is in a socket write
+    private boolean closed; // Set by close(): the writer drains the buffer and exits
+    private volatile boolean error; // Set once a write to the socket failed
+    private volatile long writeStartedMillis; // When the current socket write started, 0 when idle
+    private volatile long lastActivityMillis = System.currentTimeMillis(); // Last time the client sent something
+    private volatile boolean authenticated; // Set once the user logged in or reconnected (the idle timeout applies from then on)
+
+    // Constructor: wraps the socket output stream and starts the writer
+    public ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        Thread.startVirtualThread(this::writeLoop);
+        HeartbeatMonitor.register(this);
+    }
+
+    // Queues a line for the client
+    public void println(String line) {
+        write(encodeLine(line));
+    }
+
+    /**
+     * Encodes a line (with its terminator) once, so the same payload can be
+     * written to many connections without re-encoding it for each one.
+     * @param line text to send
+     * @return read-only buffer shared between connections
+     */
+    public static ByteBuffer encodeLine(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = Arrays.copyOf(text, text.length + LINE_SEPARATOR.length);
+        System.arraycopy(LINE_SEPARATOR, 0, bytes, text.length, LINE_SEPARATOR.length);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Queues a payload produced by encodeLine; the buffer is shared, not copied, and never modified
+    public void write(ByteBuffer payload) {
+        lock.lock();
+        try {
+            int length = payload.remaining();
+            if (!reserve(length)) return;
+            queue.add(payload);
+            count += length;
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Asks the writer to send everything buffered so far without waiting for the flush delay
+    public void flush() {
+        lock.lock();
+        try {
+            flushRequested = true;
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true if a previous write to the client failed
+    public boolean checkError() {
+        return error;
+    }
+
+    // Returns true if a socket write has been blocked past the write timeout
+    // (the client stopped reading); read without any lock, so the heartbeat never waits
+    public boolean isWriteStalled() {
+        long started = writeStartedMillis;
+        return started != 0 && System.currentTimeMillis() - started > WRITE_TIMEOUT_MILLIS;
+    }
+
+    // Records that the client just sent a line (used by the heartbeat)
+    public void markActivity() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    // Records that the user logged in or reconnected: before that, the user may be typing
+    // at a prompt of a client that cannot answer heartbeats meanwhile
+    public void markAuthenticated() {
+        authenticated = true;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    // Returns how long the client has been silent
+    public long getIdleMillis() {
+        return System.currentTimeMillis() - lastActivityMillis;
+    }
+
+    // Closes the underlying socket; pending and future writes are dropped.
+    // The close runs on its own virtual thread: closing a TLS socket sends close_notify,
+    // which could block behind a stuck write, and callers must never block.
+    public void disconnect() {
+        error = true;
+        lock.lock();
+        try {
+            dataAvailable.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Thread.startVirtualThread(() -> {
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+        });
+    }
+
+    // Sends pending data (waiting a bounded time for the writer) and stops the heartbeat;
+    // the socket itself is closed by its owner
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            dataAvailable.signal();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+            while ((count > 0 || writing) && !error && nanos > 0) {
+                nanos = drained.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        HeartbeatMonitor.unregister(this);
+    }
+
+    // Writer loop: the only place that writes to the socket
+    private void writeLoop() {
+        try {
+            while (true) {
+                ArrayDeque<ByteBuffer> batch;
+                lock.lock();
+                try {
+                    while (count == 0 && !closed && !error) {
+                        dataAvailable.await();
+                    }
+                    if (error || count == 0) return; // Dead, or closed with nothing left to send
+                    // Give a burst a moment to accumulate, unless a full record is already there
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(FLUSH_DELAY_MILLIS);
+                    while (!flushRequested && !closed && !error && count < FLUSH_THRESHOLD && nanos > 0) {
+                        nanos = dataAvailable.awaitNanos(nanos);
+                    }
+                    batch = queue;
+                    queue = sending;
+                    count = 0;
+                    flushRequested = false;
+                    writing = true;
+                    writeStartedMillis = System.currentTimeMillis();
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    if (!error) send(batch); // Socket writes happen outside the lock
+                } catch (IOException e) {
+                    disconnect(); // Wake up the handler blocked reading from this client
+                }
+                batch.clear();
+
+                lock.lock();
+                try {
+                    sending = batch;
+                    writing = false;
+                    writeStartedMillis = 0;
+                    drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            disconnect();
+        } finally {
+            lock.lock();
+            try {
+                writing = false;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Gathers the queued buffers into full records and writes them (writer thread only)
+    private void send(ArrayDeque<ByteBuffer> batch) throws IOException {
+        int filled = 0;
+        for (ByteBuffer payload : batch) {
+            int position = payload.position();
+            int remaining = payload.remaining();
+            while (remaining > 0) {
+                int length = Math.min(remaining, record.length - filled);
+                payload.get(position, record, filled, length); // Absolute get: the shared buffer stays untouched
+                position += length;
+                remaining -= length;
+                filled += length;
+                if (filled == record.length) {
+                    out.write(record, 0, filled);
+                    filled = 0;
+                }
+            }
+        }
+        if (filled > 0) out.write(record, 0, filled);
+        out.flush();
+    }
+
+    // Waits until less than a full record is pending; only for the connection's own handler,
+    // which may block (e.g. between chunks of a history replay)
+    public void awaitCapacity() {
+        lock.lock();
+        try {
+            while (count >= FLUSH_THRESHOLD && !error) {
+                drained.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checks that the given number of bytes may be queued, or disconnects a client that
+    // fell too far behind (caller holds lock); returns false if the data must be dropped
+    private boolean reserve(int extra) {
+        if (error) return false;
+        if (count + extra > MAX_BUFFERED) {
+            System.out.println("Disconnecting slow client (" + count + " bytes unsent)");
+            disconnect();
+            return false;
+        }
+        return true;
+    }
+}
@@ -2,11 +2,17 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // This class handles communication with a single connected client.
+// A connection may be subscribed to several rooms at once; every line sent
+// to the client is tagged with the name of the room it belongs to.
 public class ClientHandler {
     private final Socket socket;
     private final UserManager userManager;
+    private String token; // Session token of the logged in user (re-issued when signed tokens change)
+    private Session session;
 
     // Constructor receives the socket and a reference to the user manager
     public ClientHandler(Socket socket, UserManager userManager) {
@@ -14,67 +20,81 @@ public class ClientHandler {
         this.userManager = userManager;
     }
 
-    // Validates if the room name starts with a letter (A-Z or a-z)
+    // Validates if the room name starts with a letter (A-Z or a-z) and has no spaces or commas
     private boolean isValidRoomName(String name) {
-        return name != null && name.matches("^[a-zA-Z].*");
+        return name != null && name.matches("^[a-zA-Z][^\\s,]*$");
+    }
+
+    // Reads the next client line, first flushing any pending output (e.g. a prompt).
+    // Heartbeat answers are skipped; returns null once the connection is gone.
+    private String readLine(LineReader in, ClientConnection out) {
+        out.flush();
+        try {
+            String line;
+            do {
+                line = in.readLine();
+                if (line != null) out.markActivity();
+            } while ("PONG".equals(line));
+            return line;
+        } catch (IOException e) {
+            return null; // Connection dropped or closed by the heartbeat monitor
+        }
     }
 
     // Main method to handle client interaction
     public void handle() throws IOException {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+        try (ClientConnection out = new ClientConnection(socket)) {
+            LineReader in = new LineReader(socket.getInputStream());
 
             out.println("Welcome to ChatApp!");
 
             // --- Support for reconnection using saved token ---
-            String mode = in.readLine();
+            String mode = readLine(in, out);
             if (mode != null && mode.startsWith("RECONNECT")) {
-                String token = mode.split(" ")[1];
-                Session session = ServerMain.getSession(token);
+                token = mode.split(" ")[1];
+                session = ServerMain.getSession(token);
 
                 // Update session with the new output stream
                 if (session != null) {
+                    ClientConnection previous = session.getWriter();
                     session.setWriter(out); // substituir writer antigo
-                    ServerMain.saveSessionsToFile("sessions.txt");
-                    
-                    ChatRoom room = session.getRoom();
-                    String username = session.getUsername();
+                    if (!TokenSigner.isSignedToken(token)) {
+                        ServerMain.saveSessionsToFile(ServerMain.getSessionsFile());
+                    }
 
+                    String username = session.getUsername();
+                    out.markAuthenticated();
                     out.println("RECONNECT_SUCCESS");
                     out.println("Welcome back, " + username + "!");
 
-                    // If the session has a room, rejoin and start chat loop
-                    if (room != null) {
-                        room.rejoin(out, username);  // apenas se estiver numa sala
-                
-                        for (String msg : room.getMessages()) {
-                            out.println(msg);
-                        }
-                
-                        String msg;
-                        while ((msg = in.readLine()) != null) {
-                            if (msg.equalsIgnoreCase("/exit")) {
-                                room.leave(out, username);
-                                break;
-                            } else {
-                                room.broadcast(username + ": " + msg);
-                            }
-                        }
-                    } else {
+                    // Silently rejoin every subscribed room and replay their history
+                    Map<String, ChatRoom> rooms = new LinkedHashMap<>();
+                    for (ChatRoom room : session.getRooms()) {
+                        room.rejoin(out, previous, username); // Replaces only this session's old connection
+                        room.replayHistory(out); // Replay history in a few large writes
+                        rooms.put(room.getName(), room);
+                    }
+                    if (rooms.isEmpty()) {
                         out.println("[INFO] Reconnected, but you are not in a room.");
-                        
                     }
-                    return; // End reconnection handling
+
+                    chat(in, out, username, rooms);
                 } else {
                     out.println("RECONNECT_FAILED");
-                    return;
                 }
+                return; // End reconnection handling
+            }
+
+            // --- Readiness probe: READY once saved sessions and room histories are restored ---
+            if ("STATUS".equalsIgnoreCase(mode)) {
+                out.println(ServerMain.isReady() ? "READY" : "STARTING");
+                return;
             }
 
             // --- User registration ---
             if ("REGISTER".equalsIgnoreCase(mode)) {
-                String newUser = in.readLine();
-                String newPass = in.readLine();
+                String newUser = readLine(in, out);
+                String newPass = readLine(in, out);
                 boolean success = userManager.register(newUser, newPass);
                 out.println(success ? "REG_SUCCESS" : "Username already exists");
                 return;
@@ -87,93 +107,171 @@ public class ClientHandler {
             }
 
             // --- User login ---
-            String username = in.readLine();
-            String password = in.readLine();
-            ChatRoom room = null;
-            String token = null;
+            String username = readLine(in, out);
+            String password = readLine(in, out);
 
             if (userManager.authenticate(username, password)) {
+                out.markAuthenticated();
                 out.println("AUTH_SUCCESS");
 
                 // Create a new session and send token to client
-                token = ServerMain.createSession(username, null, out);
+                token = ServerMain.createSession(username, out);
                 out.println("TOKEN " + token);
-                System.out.println("DEBUG: Token generated for " + username + " -> " + token);
 
-                while (true) {
-                    // List available rooms to the user
-                    out.println("Rooms available:");
-                    for (String name : ServerMain.getRoomNames()) {
-                        out.println("- " + name);
-                    }
+                session = ServerMain.getSession(token);
+                chat(in, out, username, new LinkedHashMap<>());
+            } else {
+                out.println("AUTH_FAILED"); // Login failed
+            }
 
-                    // Ask user to choose a valid room
-                    String roomName;
-                    while (true) {
-                        out.println("Enter room name (must start with a letter):");
-                        roomName = in.readLine();
-                        if (!isValidRoomName(roomName)) {
-                            out.println("Invalid room name!");
-                        } else {
-                            break;
-                        }
-                    }
-                    
-                    // Join or create the requested room
-                    room = ServerMain.getOrCreateRoom(roomName);
-                    room.join(out, username);
-                    out.println("Room: " + room.getName());
-
-                    // Update the session with the joined room
-                    Session session = ServerMain.getSession(token);
-                    if (session != null) {
-                        session.setRoom(room);
-                        // You may persist sessions here if needed
-                        // ServerMain.saveSessionsToFile("sessions.txt");
-                    }
+        } finally {
+            socket.close(); // Always close socket at the end
+        }
+    }
 
-                    // Inform user if in AI-powered chat room
-                    if (room instanceof AiChatRoom) {
-                        out.println("[You are in an AI-powered room. The bot will respond to your messages.]");
-                    }
+    // Chat loop shared by login and reconnection.
+    // rooms holds the current subscriptions (name -> room); plain messages go to the active room,
+    // which is the most recently joined one.
+    private void chat(LineReader in, ClientConnection out, String username, Map<String, ChatRoom> rooms) {
+        ChatRoom active = null;
+        for (ChatRoom room : rooms.values()) active = room;
 
-                    // Send chat history
-                    for (String msg : room.getMessages()) {
-                        out.println(msg);
+        while (true) {
+            // Not in any room: ask the user to choose one
+            if (rooms.isEmpty()) {
+                listRooms(out, rooms);
+                String roomName;
+                while (true) {
+                    out.println("Enter room name (must start with a letter):");
+                    roomName = readLine(in, out);
+                    if (roomName == null) return; // Client disconnected
+                    if (!isValidRoomName(roomName)) {
+                        out.println("Invalid room name!");
+                    } else {
+                        break;
                     }
+                }
+                active = join(out, username, rooms, roomName);
+            }
 
-                    // Chat loop to read user messages and broadcast
-                    String line;
-                    boolean leavingRoom = false;
-
-                    while ((line = in.readLine()) != null) {
-                        if (line.equalsIgnoreCase("/exit")) {
-                            room.leave(out, username);
-                            leavingRoom = true;
-                            return; // Exit the application
-                        } else if (line.equalsIgnoreCase("/leave")) {
-                            room.leave(out, username);
-                            leavingRoom = true;
-                            break; // Go back to room selection
-                        } else if (line.equalsIgnoreCase("/rooms")) {
-                            out.println("Rooms available:");
-                            for (String name : ServerMain.getRoomNames()) {
-                                out.println("- " + name);
-                            }
-                        } else {
-                            room.broadcast(username + ": " + line);
-                        }
-                    }
-                    // If user didn't type /leave, break outer loop
-                    if (!leavingRoom) break;
+            String line = readLine(in, out);
+            if (line == null) {
+                // Connection dropped: stop delivering to it, but keep the session for RECONNECT
+                for (ChatRoom room : rooms.values()) {
+                    room.disconnect(out, username);
                 }
+                return;
+            }
 
+            String[] parts = line.split(" ", 3);
+            String command = parts[0].toLowerCase();
+            if (command.equals("/exit")) {
+                for (ChatRoom room : rooms.values().toArray(new ChatRoom[0])) {
+                    part(out, username, rooms, room);
+                }
+                return; // Exit the application
+            } else if (command.equals("/logout")) {
+                for (ChatRoom room : rooms.values().toArray(new ChatRoom[0])) {
+                    part(out, username, rooms, room);
+                }
+                ServerMain.endSession(token); // The token can no longer be used to RECONNECT
+                out.println("LOGGED_OUT");
+                return;
+            } else if (command.equals("/leave")) {
+                part(out, username, rooms, active); // Leave the active room
+                active = last(rooms);
+            } else if (command.equals("/rooms")) {
+                listRooms(out, rooms);
+            } else if (command.equals("/aistats")) {
+                out.println(ServerMain.getAiPool().getStats());
+            } else if (command.equals("/join")) {
+                if (parts.length < 2) {
+                    out.println("Usage: /join <room>");
+                } else if (!isValidRoomName(parts[1])) {
+                    out.println("Invalid room name!");
+                } else if (rooms.containsKey(parts[1])) {
+                    active = rooms.get(parts[1]); // Already subscribed: just make it active
+                    out.println("Active room: " + active.getName());
+                } else {
+                    active = join(out, username, rooms, parts[1]);
+                }
+            } else if (command.equals("/part")) {
+                ChatRoom room = parts.length > 1 ? rooms.get(parts[1]) : active;
+                if (room == null) {
+                    out.println("You are not in room " + parts[1]);
+                } else {
+                    part(out, username, rooms, room);
+                    if (room == active) active = last(rooms);
+                }
+            } else if (command.equals("/say")) {
+                ChatRoom room = parts.length > 2 ? rooms.get(parts[1]) : null;
+                if (parts.length < 3) {
+                    out.println("Usage: /say <room> <message>");
+                } else if (room == null) {
+                    out.println("You are not in room " + parts[1]);
+                } else {
+                    room.broadcast(ChatMessage.chat(username, parts[2]));
+                }
             } else {
-                out.println("AUTH_FAILED"); // Login failed
+                active.broadcast(ChatMessage.chat(username, line));
             }
+        }
+    }
 
-        } finally {
-            socket.close(); // Always close socket at the end
+    // Joins or creates a room, subscribes the session to it and sends its history
+    private ChatRoom join(ClientConnection out, String username, Map<String, ChatRoom> rooms, String roomName) {
+        ChatRoom room = ServerMain.getOrCreateRoom(roomName);
+        room.join(out, username);
+        rooms.put(room.getName(), room);
+        out.println("Room: " + room.getName());
+
+        // Update the session with the joined room
+        if (session != null) {
+            session.addRoom(room);
+            updateSession(out); // Needed by RECONNECT (also on other nodes)
+        }
+
+        // Inform user if in AI-powered chat room
+        if (room instanceof AiChatRoom) {
+            out.println(room.tag("[You are in an AI-powered room. The bot will respond to your messages.]"));
+        }
+
+        // Send chat history in a few large writes
+        room.replayHistory(out);
+        return room;
+    }
+
+    // Leaves a room and removes it from the session
+    private void part(ClientConnection out, String username, Map<String, ChatRoom> rooms, ChatRoom room) {
+        room.leave(out, username);
+        rooms.remove(room.getName());
+        if (session != null) {
+            session.removeRoom(room);
+            updateSession(out);
         }
     }
+
+    // Publishes the session change; a signed token is re-issued, so the client gets the new one
+    private void updateSession(ClientConnection out) {
+        String updated = ServerMain.updateSession(token, session);
+        if (!updated.equals(token)) {
+            token = updated;
+            out.println("TOKEN " + token);
+        }
+    }
+
+    // Lists all rooms, marking the ones this connection is subscribed to
+    private void listRooms(ClientConnection out, Map<String, ChatRoom> rooms) {
+        out.println("Rooms available:");
+        for (String name : ServerMain.getRoomNames()) {
+            out.println((rooms.containsKey(name) ? "* " : "- ") + name);
+        }
+    }
+
+    // Returns the most recently joined room still subscribed, or null
+    private ChatRoom last(Map<String, ChatRoom> rooms) {
+        ChatRoom last = null;
+        for (ChatRoom room : rooms.values()) last = room;
+        return last;
+    }
 }
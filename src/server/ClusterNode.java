@@ -0,0 +1,443 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Membership of this server in a cluster of chat servers.
+ * Rooms are partitioned between nodes by consistent hashing of the room name:
+ * the owner keeps the history and runs the room, while other nodes hold a
+ * {@link RemoteChatRoom} mirror for their local participants.
+ * Users and sessions are replicated to every node so that RECONNECT works anywhere.
+ *
+ * Nodes talk over persistent TLS links (with the key store of tls.txt, shared by all
+ * nodes) using tab-separated lines. The accepting node first sends a random challenge,
+ * and the connecting node answers with its id and an HMAC of the challenge under the
+ * cluster secret; links from unknown nodes or without the secret are closed:
+ *   CHALLENGE nonce | HELLO node proof | SYNC_END (after the state sent on connecting)
+ *   USER name password | SESSION token sessionLine | SESSION_END token expiry
+ *   REVOKE tokenId expiry | ROOM room
+ *   ROOM_POST room msg | ROOM_RECORD room msg | ROOM_DELIVER room msg | ROOM_APPEND room msg
+ *   HISTORY_REQ room snapshot | HISTORY room snapshot msg | HISTORY_END room snapshot | UNSUBSCRIBE room
+ * where msg is a ChatMessage record string and snapshot numbers a mirror's history request.
+ * The owner relays a room only to the peers holding a mirror of it: a peer subscribes with
+ * HISTORY_REQ and unsubscribes when its mirror has no participants left.
+ */
+public class ClusterNode {
+    private static final String HMAC = "HmacSHA256";
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000; // Max time for a peer to prove the secret
+
+    private final String nodeId;
+    private final int clientPort; // Port where this node accepts chat clients
+    private final int clusterPort; // Port where this node accepts links from peers
+    private final HashRing ring;
+    private final TlsConfig tls;
+    private final byte[] secret; // Shared by all nodes, proves that a link comes from a cluster member
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, PeerLink> peers = new LinkedHashMap<>(); // Peer node id -> outgoing link
+    private final Set<String> remoteRooms = new HashSet<>(); // Rooms announced by other nodes
+    private final Map<String, Set<String>> mirrors = new HashMap<>(); // Local room -> peers holding a mirror of it
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Protects remoteRooms and mirrors
+    private UserManager userManager;
+
+    private ClusterNode(String nodeId, int clientPort, int clusterPort, HashRing ring, TlsConfig tls, byte[] secret) {
+        this.nodeId = nodeId;
+        this.clientPort = clientPort;
+        this.clusterPort = clusterPort;
+        this.ring = ring;
+        this.tls = tls;
+        this.secret = secret;
+    }
+
+    /**
+     * Reads the cluster description and builds the node with the given id.
+     * Each node line has the format "nodeId host clientPort clusterPort"; the shared secret
+     * is read from "secret-env VARIABLE" or "secret-file path" (required); '#' starts a comment.
+     * @param path path to the cluster file
+     * @param nodeId id of the local node
+     * @param tls TLS setup used for the links between nodes
+     * @return the configured node
+     * @throws IOException if the file cannot be read, does not list the node or has no secret
+     */
+    public static ClusterNode fromFile(String path, String nodeId, TlsConfig tls) throws IOException {
+        Map<String, String[]> nodes = new LinkedHashMap<>();
+        String secret = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length == 2 && parts[0].equals("secret-env")) {
+                    secret = System.getenv(parts[1]);
+                    if (secret == null) throw new IOException("Environment variable " + parts[1] + " is not set");
+                } else if (parts.length == 2 && parts[0].equals("secret-file")) {
+                    secret = Files.readAllLines(Path.of(parts[1])).stream().findFirst().orElse("").strip();
+                } else if (parts.length == 4) {
+                    nodes.put(parts[0], parts);
+                } else {
+                    throw new IOException("Invalid cluster line: " + line);
+                }
+            }
+        }
+
+        String[] self = nodes.get(nodeId);
+        if (self == null) throw new IOException("Node '" + nodeId + "' not found in " + path);
+        if (secret == null || secret.isEmpty()) {
+            throw new IOException("No cluster secret in " + path + ": set secret-env or secret-file");
+        }
+
+        ClusterNode node = new ClusterNode(nodeId, Integer.parseInt(self[2]), Integer.parseInt(self[3]),
+                new HashRing(nodes.keySet()), tls, secret.getBytes(StandardCharsets.UTF_8));
+        SSLSocketFactory socketFactory = tls.createPeerSocketFactory();
+        for (String[] peer : nodes.values()) {
+            if (peer[0].equals(nodeId)) continue;
+            node.peers.put(peer[0], new PeerLink(nodeId, peer[0], peer[1], Integer.parseInt(peer[3]),
+                    socketFactory, node::prove, () -> node.syncLines(peer[0])));
+        }
+        return node;
+    }
+
+    /**
+     * Starts accepting peer links and connecting to every peer.
+     * @param userManager local user store, kept in sync with the other nodes
+     */
+    public void start(UserManager userManager) {
+        this.userManager = userManager;
+        Thread.startVirtualThread(this::listen);
+        for (PeerLink link : peers.values()) {
+            link.start();
+        }
+    }
+
+    // Getters for the node configuration
+    public String getNodeId() { return nodeId; }
+    public int getClientPort() { return clientPort; }
+
+    // Checks whether the given room is owned by this node
+    public boolean isLocal(String roomName) {
+        return nodeId.equals(ring.ownerOf(roomName));
+    }
+
+    // Checks whether the link to the owner of a room is up
+    public boolean isOwnerConnected(String roomName) {
+        PeerLink link = peers.get(ring.ownerOf(roomName));
+        return link != null && link.isConnected();
+    }
+
+    // Returns the names of rooms created on other nodes
+    public List<String> getRemoteRoomNames() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(remoteRooms);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- Outgoing operations ---
+
+    // Tells every peer that a room now exists on this node
+    public void announceRoom(String roomName) {
+        sendToAll("ROOM\t" + roomName);
+    }
+
+    // Owner side: sends a broadcast message to every mirror of the room
+    public void relayDeliver(String roomName, ChatMessage message) {
+        sendToMirrors(roomName, "ROOM_DELIVER\t" + roomName + "\t" + message.toRecordString());
+    }
+
+    // Owner side: sends a history-only record to every mirror of the room
+    public void relayAppend(String roomName, ChatMessage message) {
+        sendToMirrors(roomName, "ROOM_APPEND\t" + roomName + "\t" + message.toRecordString());
+    }
+
+    // Mirror side: asks the owner to broadcast a message in the room
+    public void forwardPost(String roomName, ChatMessage message) {
+        sendToOwner(roomName, "ROOM_POST\t" + roomName + "\t" + message.toRecordString());
+    }
+
+    // Mirror side: asks the owner to record a message in the room history
+    public void forwardRecord(String roomName, ChatMessage message) {
+        sendToOwner(roomName, "ROOM_RECORD\t" + roomName + "\t" + message.toRecordString());
+    }
+
+    // Mirror side: asks the owner for the full history of the room (the reply carries the snapshot number)
+    // and for the relays that follow it
+    public void requestHistory(String roomName, int snapshot) {
+        sendToOwner(roomName, "HISTORY_REQ\t" + roomName + "\t" + snapshot);
+    }
+
+    // Mirror side: tells the owner to stop relaying the room (no local participant left)
+    public void unsubscribe(String roomName) {
+        sendToOwner(roomName, "UNSUBSCRIBE\t" + roomName);
+    }
+
+    // Replicates a newly registered user
+    public void replicateUser(String username, String password) {
+        sendToAll("USER\t" + username + "\t" + password);
+    }
+
+    // Replicates a new or updated session
+    public void replicateSession(String token, Session session) {
+        sendToAll("SESSION\t" + token + "\t" + session.toFileString());
+    }
+
+    // Replicates a logout of a stored session (peers keep the token as ended until it expires)
+    public void replicateSessionEnd(String token, long expiryTimeMillis) {
+        sendToAll("SESSION_END\t" + token + "\t" + expiryTimeMillis);
+    }
+
+    // Replicates the revocation of a signed token
+    public void replicateRevocation(String tokenId, long expiryTimeMillis) {
+        sendToAll("REVOKE\t" + tokenId + "\t" + expiryTimeMillis);
+    }
+
+    private void sendToAll(String line) {
+        for (PeerLink link : peers.values()) {
+            link.send(line);
+        }
+    }
+
+    // Sends to the peers subscribed to a local room (called under the room lock; sends never wait)
+    private void sendToMirrors(String roomName, String line) {
+        lock.readLock().lock();
+        try {
+            Set<String> subscribers = mirrors.get(roomName);
+            if (subscribers == null) return;
+            for (String peerId : subscribers) {
+                peers.get(peerId).send(line);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void sendToOwner(String roomName, String line) {
+        PeerLink link = peers.get(ring.ownerOf(roomName));
+        if (link != null) link.send(line);
+    }
+
+    // Lines describing the local state, sent to a peer each time a link is (re)established.
+    // The peer then asks again for the rooms it mirrors, so its old subscriptions are dropped.
+    private List<String> syncLines(String peerId) {
+        lock.writeLock().lock();
+        try {
+            for (Set<String> subscribers : mirrors.values()) {
+                subscribers.remove(peerId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> user : userManager.getUsers().entrySet()) {
+            lines.add("USER\t" + user.getKey() + "\t" + user.getValue());
+        }
+        for (Map.Entry<String, Session> entry : ServerMain.getSessions().entrySet()) {
+            lines.add("SESSION\t" + entry.getKey() + "\t" + entry.getValue().toFileString());
+        }
+        for (Map.Entry<String, Long> entry : ServerMain.getEndedSessions().entrySet()) {
+            lines.add("SESSION_END\t" + entry.getKey() + "\t" + entry.getValue());
+        }
+        for (String roomName : ServerMain.getRoomNames()) {
+            if (isLocal(roomName)) lines.add("ROOM\t" + roomName);
+        }
+        TokenSigner signer = ServerMain.getSigner();
+        if (signer != null) {
+            for (Map.Entry<String, Long> entry : signer.getRevoked().entrySet()) {
+                lines.add("REVOKE\t" + entry.getKey() + "\t" + entry.getValue());
+            }
+        }
+        return lines;
+    }
+
+    // --- Incoming links ---
+
+    // Proof that a link comes from this node: HMAC of the peer's challenge and our id under the secret
+    private String prove(String challenge) {
+        return proof(challenge, nodeId);
+    }
+
+    private String proof(String challenge, String peerId) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            byte[] digest = mac.doFinal((challenge + "\t" + peerId).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC not available", e);
+        }
+    }
+
+    // Accepts links opened by peers (TLS, with the client listener's key store)
+    private void listen() {
+        try (ServerSocket serverSocket = tls.createServerSocket(clusterPort)) {
+            System.out.println("Cluster node " + nodeId + " listening for peers on port " + clusterPort + " (TLS)");
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread.startVirtualThread(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("Cluster listener error: " + e.getMessage());
+        }
+    }
+
+    // Authenticates one peer, then reads the lines it sends and applies them in order
+    private void serve(Socket socket) {
+        try (socket) {
+            byte[] nonce = new byte[32];
+            random.nextBytes(nonce);
+            String challenge = Base64.getEncoder().encodeToString(nonce);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            socket.getOutputStream().write(("CHALLENGE\t" + challenge + "\n").getBytes(StandardCharsets.UTF_8));
+
+            LineReader in = new LineReader(socket.getInputStream());
+            String hello = in.readLine();
+            String[] parts = hello == null ? new String[0] : hello.split("\t", 3);
+            if (parts.length != 3 || !parts[0].equals("HELLO")) {
+                System.err.println("Rejected cluster link from " + socket.getInetAddress() + ": no handshake");
+                return;
+            }
+            String peerId = parts[1];
+            if (!peers.containsKey(peerId)) {
+                System.err.println("Rejected cluster link from " + socket.getInetAddress() + ": unknown node " + peerId);
+                return;
+            }
+            byte[] expected = proof(challenge, peerId).getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(expected, parts[2].getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("Rejected cluster link from " + socket.getInetAddress() + ": wrong secret for " + peerId);
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            // Sessions of the initial sync are collected and stored in one batch (one save of the sessions file)
+            Map<String, String> syncSessions = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    if (syncSessions != null && line.startsWith("SESSION\t")) {
+                        String[] session = line.split("\t", 3);
+                        syncSessions.put(session[1], session[2]);
+                    } else if (syncSessions != null && line.equals("SYNC_END")) {
+                        ServerMain.putReplicatedSessions(syncSessions);
+                        syncSessions = null;
+                        resyncMirrors(peerId); // Relays from this peer may have been lost while the link was down
+                    } else {
+                        dispatch(peerId, line);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Invalid cluster message from " + peerId + ": " + e.getMessage());
+                }
+            }
+            if (syncSessions != null) ServerMain.putReplicatedSessions(syncSessions); // Link closed during the sync
+        } catch (IOException e) {
+            System.err.println("Cluster peer disconnected: " + e.getMessage());
+        }
+    }
+
+    // Applies a single protocol line received from a peer
+    private void dispatch(String peerId, String line) {
+        String[] parts = line.split("\t", 3);
+        switch (parts[0]) {
+            case "USER" -> userManager.addReplica(parts[1], parts[2]);
+            case "SESSION" -> ServerMain.putReplicatedSession(parts[1], parts[2]);
+            case "SESSION_END" -> ServerMain.removeSession(parts[1], Long.parseLong(parts[2]));
+            case "REVOKE" -> {
+                TokenSigner signer = ServerMain.getSigner();
+                if (signer != null) signer.revoke(parts[1], Long.parseLong(parts[2]));
+            }
+            case "ROOM" -> {
+                lock.writeLock().lock();
+                try {
+                    remoteRooms.add(parts[1]);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            case "ROOM_POST" -> ServerMain.getOrCreateRoom(parts[1]).broadcast(ChatMessage.fromRecordString(parts[2]));
+            case "ROOM_RECORD" -> ServerMain.getOrCreateRoom(parts[1]).record(ChatMessage.fromRecordString(parts[2]));
+            case "ROOM_DELIVER" -> {
+                RemoteChatRoom mirror = findMirror(parts[1]);
+                if (mirror != null) mirror.onDeliver(ChatMessage.fromRecordString(parts[2]));
+            }
+            case "ROOM_APPEND" -> {
+                RemoteChatRoom mirror = findMirror(parts[1]);
+                if (mirror != null) mirror.onAppend(ChatMessage.fromRecordString(parts[2]));
+            }
+            case "HISTORY_REQ" -> {
+                PeerLink link = peers.get(peerId);
+                if (link == null) return;
+                // Streamed on its own thread, outside any lock: waiting for queue space must not stop
+                // this peer's reader. If a line is still dropped, HISTORY_END is not sent and the mirror asks again.
+                String prefix = "HISTORY\t" + parts[1] + "\t" + parts[2] + "\t";
+                ChatRoom room = ServerMain.getOrCreateRoom(parts[1]);
+                subscribe(parts[1], peerId, true); // Before the snapshot, so no relay falls between the two
+                Thread.startVirtualThread(() -> room.sendHistory(
+                        message -> link.sendWaiting(prefix + message.toRecordString()),
+                        message -> link.send(prefix + message.toRecordString()),
+                        () -> link.send("HISTORY_END\t" + parts[1] + "\t" + parts[2])));
+            }
+            case "UNSUBSCRIBE" -> subscribe(parts[1], peerId, false);
+            case "HISTORY" -> {
+                RemoteChatRoom mirror = findMirror(parts[1]);
+                String[] snapshot = parts[2].split("\t", 2);
+                if (mirror != null) mirror.onHistory(Integer.parseInt(snapshot[0]), ChatMessage.fromRecordString(snapshot[1]));
+            }
+            case "HISTORY_END" -> {
+                RemoteChatRoom mirror = findMirror(parts[1]);
+                if (mirror != null) mirror.onHistoryEnd(Integer.parseInt(parts[2]));
+            }
+            default -> System.err.println("Unknown cluster message from " + peerId + ": " + parts[0]);
+        }
+    }
+
+    // Adds or removes a peer from the mirrors of a local room
+    private void subscribe(String roomName, String peerId, boolean subscribed) {
+        lock.writeLock().lock();
+        try {
+            if (subscribed) {
+                mirrors.computeIfAbsent(roomName, name -> new HashSet<>()).add(peerId);
+            } else {
+                Set<String> subscribers = mirrors.get(roomName);
+                if (subscribers != null) subscribers.remove(peerId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Asks for new history snapshots of every local mirror of a room owned by the given peer
+    private void resyncMirrors(String peerId) {
+        for (String roomName : ServerMain.getRoomNames()) {
+            RemoteChatRoom mirror = findMirror(roomName);
+            if (mirror != null && peerId.equals(ring.ownerOf(roomName))) mirror.requestHistory();
+        }
+    }
+
+    // Returns the local mirror of a remote room, if any participant here uses it
+    private RemoteChatRoom findMirror(String roomName) {
+        ChatRoom room = ServerMain.findRoom(roomName);
+        return (room instanceof RemoteChatRoom) ? (RemoteChatRoom) room : null;
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Turns a text into a vector, so that similar texts get vectors pointing in similar
+ * directions. Used by AI rooms to find the past messages relevant to a question.
+ * Implementations must be safe to call from several workers at once.
+ */
+public interface Embedder {
+
+    /**
+     * Computes the embedding of a text.
+     * @param text text to embed
+     * @param timeoutMillis max time to wait for the model
+     * @return the vector (any length, the same for every call)
+     * @throws IOException if the embedding model cannot be reached or fails
+     * @throws TimeoutException if the model did not answer in time
+     */
+    float[] embed(String text, long timeoutMillis) throws IOException, TimeoutException;
+
+    // Short description used in logs
+    String describe();
+}
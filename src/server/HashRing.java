@@ -0,0 +1,56 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring used to partition rooms between cluster nodes.
+ * Each node is placed on the ring several times (virtual nodes) so that rooms
+ * spread evenly and only a small share of them moves when a node is added or removed.
+ */
+public class HashRing {
+    private static final int VIRTUAL_NODES = 128; // Ring positions per node
+    private final TreeMap<Long, String> ring = new TreeMap<>(); // Hash position -> node id
+
+    /**
+     * Builds the ring for the given node ids.
+     * @param nodeIds ids of every node in the cluster (including the local one)
+     */
+    public HashRing(Collection<String> nodeIds) {
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the node that owns the given room.
+     * @param roomName name of the room
+     * @return owning node id, or null if the ring is empty
+     */
+    public String ownerOf(String roomName) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(roomName));
+        if (entry == null) entry = ring.firstEntry(); // Wrap around the ring
+        return entry.getValue();
+    }
+
+    // Maps a key to a ring position using the first 8 bytes of its MD5 digest
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.util.Locale;
+
+/**
+ * Deterministic local embedder that needs no model: every word (and pair of adjacent
+ * words) is hashed to a signed slot of the vector ("feature hashing"), so texts
+ * sharing words get similar vectors. Much weaker than a real embedding model, but
+ * free, repeatable and good enough for keyword-level retrieval and for testing.
+ */
+public class HashingEmbedder implements Embedder {
+    private final int dimensions;
+
+    // Constructor: length of the produced vectors
+    public HashingEmbedder(int dimensions) {
+        if (dimensions < 1) throw new IllegalArgumentException("Embedding dimensions must be at least 1");
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public float[] embed(String text, long timeoutMillis) { // Local and fast: no timeout needed
+        float[] vector = new float[dimensions];
+        String previous = null;
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            addFeature(vector, word, 1.0f);
+            if (previous != null) addFeature(vector, previous + " " + word, 0.5f); // Some word order
+            previous = word;
+        }
+        return vector;
+    }
+
+    // Adds a feature to the slot chosen by its hash, with a sign from another bit of the hash
+    private void addFeature(float[] vector, String feature, float weight) {
+        int hash = mix(feature.hashCode());
+        int slot = Math.floorMod(hash, dimensions);
+        vector[slot] += (hash & 0x40000000) != 0 ? weight : -weight;
+    }
+
+    // Spreads String.hashCode bits, which are poorly distributed for short words
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String describe() {
+        return "hashing (" + dimensions + " dimensions)";
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Detects client connections that died without /leave or /exit.
+ * Connections that have been silent for a while receive a "PING" (clients answer "PONG");
+ * connections that stay silent past the idle timeout, whose writes failed, or whose writer
+ * has been blocked on the socket past the write timeout are closed, which ends their
+ * handler and removes them from their rooms.
+ * Before login the user may be typing at a prompt, so connections are not pinged and
+ * only a longer login timeout applies.
+ *
+ * The heartbeat thread is shared by every connection, so it never does socket I/O itself:
+ * the PING is only queued for the connection's writer, and disconnecting closes the
+ * socket on another thread.
+ */
+public class HeartbeatMonitor {
+    private static final long CHECK_INTERVAL_SECONDS = 5; // How often connections are checked
+    private static final long PING_AFTER_MILLIS = 15_000; // Silence before a PING is sent
+    private static final long IDLE_TIMEOUT_MILLIS = 45_000; // Silence before the connection is dropped
+    private static final long LOGIN_TIMEOUT_MILLIS = 300_000; // Silence allowed before login (at the prompts)
+
+    private static final Set<ClientConnection> connections = new HashSet<>(); // Monitored connections
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        timer.scheduleAtFixedRate(HeartbeatMonitor::check, CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Starts monitoring a connection
+    public static void register(ClientConnection connection) {
+        lock.writeLock().lock();
+        try {
+            connections.add(connection);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Stops monitoring a connection (called when its handler ends)
+    public static void unregister(ClientConnection connection) {
+        lock.writeLock().lock();
+        try {
+            connections.remove(connection);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Pings quiet connections and drops dead ones
+    private static void check() {
+        List<ClientConnection> snapshot;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(connections);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (ClientConnection connection : snapshot) {
+            long idle = connection.getIdleMillis();
+            if (connection.isWriteStalled()) {
+                System.out.println("Dropping stalled connection (write blocked, idle " + idle / 1000 + "s)");
+                connection.disconnect();
+                unregister(connection);
+            } else if (!connection.isAuthenticated()) {
+                if (connection.checkError() || idle > LOGIN_TIMEOUT_MILLIS) {
+                    System.out.println("Dropping connection that did not log in (idle " + idle / 1000 + "s)");
+                    connection.disconnect();
+                    unregister(connection);
+                }
+            } else if (connection.checkError() || idle > IDLE_TIMEOUT_MILLIS) {
+                System.out.println("Dropping dead connection (idle " + idle / 1000 + "s)");
+                connection.disconnect(); // Unblocks the handler, which cleans up its rooms
+                unregister(connection);
+            } else if (idle > PING_AFTER_MILLIS) {
+                connection.println("PING"); // Only queued: never blocks the heartbeat
+            }
+        }
+    }
+}
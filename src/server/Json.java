@@ -0,0 +1,85 @@
+package server;
+
+/**
+ * Minimal JSON helpers for the ollama HTTP API.
+ * Only what the server needs: quoting strings and reading top-level fields
+ * of a flat object; not a general parser.
+ */
+final class Json {
+    private Json() { }
+
+    // Encodes a string as a JSON string literal
+    static String quote(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // Returns the decoded value of a string field, or null if it is missing
+    static String stringField(String json, String name) {
+        int i = valueStart(json, name);
+        if (i < 0 || json.charAt(i) != '"') return null;
+        StringBuilder sb = new StringBuilder();
+        for (i++; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char e = json.charAt(++i);
+            switch (e) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'u' -> {
+                    sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                default -> sb.append(e); // \" \\ \/
+            }
+        }
+        return null; // Unterminated string
+    }
+
+    // Returns the values of a numeric array field, or null if it is missing
+    static float[] floatArrayField(String json, String name) {
+        int start = valueStart(json, name);
+        if (start < 0 || json.charAt(start) != '[') return null;
+        int end = json.indexOf(']', start);
+        if (end < 0) return null;
+        String list = json.substring(start + 1, end).strip();
+        if (list.isEmpty()) return new float[0];
+        String[] items = list.split(",");
+        float[] values = new float[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = Float.parseFloat(items[i].strip());
+        }
+        return values;
+    }
+
+    // Finds the first character of a field's value, or -1
+    private static int valueStart(String json, String name) {
+        int i = json.indexOf(quote(name));
+        if (i < 0) return -1;
+        i = json.indexOf(':', i + name.length() + 2);
+        if (i < 0) return -1;
+        for (i++; i < json.length() && Character.isWhitespace(json.charAt(i)); i++) { }
+        return i < json.length() ? i : -1;
+    }
+}
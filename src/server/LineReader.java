@@ -0,0 +1,58 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads UTF-8 lines from a socket without any monitor.
+ * BufferedReader/InputStreamReader synchronize internally, and a virtual thread
+ * blocked on a socket read while holding a monitor pins its carrier thread.
+ * The same holds for Writer classes on output, so server code reads through this class,
+ * writes encoded bytes to raw streams (see {@link ClientConnection}) and locks with
+ * java.util.concurrent locks only.
+ * Each reader is used by a single thread, so no locking is needed at all.
+ */
+public class LineReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position; // Next unread byte in buffer
+    private int limit; // End of valid data in buffer
+    private byte[] line = new byte[256]; // Bytes of the line being assembled
+
+    // Constructor: wraps the socket input stream
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line, without its terminator ("\n" or "\r\n").
+     * @return the line, or null at end of stream
+     * @throws IOException if reading from the socket fails
+     */
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return length > 0 ? decode(length) : null; // Last line without terminator
+                }
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                if (length > 0 && line[length - 1] == '\r') length--;
+                return decode(length);
+            }
+            if (length == line.length) line = Arrays.copyOf(line, length * 2);
+            line[length++] = b;
+        }
+    }
+
+    private String decode(int length) {
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, append-only message history of a room.
+ * Instead of one object per message, fields are kept in parallel primitive
+ * arrays and all bodies are packed into a single UTF-8 arena, which costs
+ * about 17 bytes per message plus the text itself.
+ * Not thread-safe: the owning ChatRoom guards it with its lock.
+ */
+public class MessageLog {
+    private int size; // Number of stored messages
+    private int[] userIds = new int[64];
+    private byte[] types = new byte[64];
+    private long[] timestamps = new long[64];
+    private int[] offsets = new int[65]; // Body i spans arena[offsets[i], offsets[i + 1])
+    private byte[] arena = new byte[4096];
+
+    // Appends a message to the log
+    public void add(ChatMessage message) {
+        if (size == userIds.length) {
+            int capacity = size * 2;
+            userIds = Arrays.copyOf(userIds, capacity);
+            types = Arrays.copyOf(types, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        byte[] body = message.getBody();
+        int start = offsets[size];
+        if (start + body.length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, start + body.length));
+        }
+        System.arraycopy(body, 0, arena, start, body.length);
+
+        userIds[size] = message.getUserId();
+        types[size] = (byte) message.getType().ordinal();
+        timestamps[size] = message.getTimestamp();
+        offsets[size + 1] = start + body.length;
+        size++;
+    }
+
+    // Returns the number of stored messages
+    public int size() {
+        return size;
+    }
+
+    // Rebuilds the message at the given position
+    public ChatMessage get(int index) {
+        return new ChatMessage(userIds[index], ChatMessage.typeOf(types[index]), timestamps[index],
+                Arrays.copyOfRange(arena, offsets[index], offsets[index + 1]));
+    }
+
+    // Formats the message at the given position directly from the arena
+    public String format(int index) {
+        String text = new String(arena, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+        return ChatMessage.format(ChatMessage.typeOf(types[index]), userIds[index], text);
+    }
+
+    /**
+     * Encodes messages as client lines straight from the arena, without decoding the
+     * bodies into strings: each line is prefix + formatted message + separator.
+     * @param from position of the first message
+     * @param to end position (exclusive)
+     * @param prefix bytes put before each line (e.g. the room tag)
+     * @param separator line terminator
+     * @param target buffer to fill; lines that do not fit entirely are left out
+     * @return position of the first message not written (from if even that one did not fit)
+     */
+    public int encodeLines(int from, int to, byte[] prefix, byte[] separator, ByteBuffer target) {
+        int index = from;
+        for (; index < to; index++) {
+            ChatMessage.Type type = ChatMessage.typeOf(types[index]);
+            byte[] header = ChatMessage.header(type, userIds[index]).getBytes(StandardCharsets.UTF_8);
+            int bodyLength = ChatMessage.hasText(type) ? offsets[index + 1] - offsets[index] : 0;
+            if (prefix.length + header.length + bodyLength + separator.length > target.remaining()) break;
+            target.put(prefix).put(header).put(arena, offsets[index], bodyLength).put(separator);
+        }
+        return index;
+    }
+
+    // Returns all messages sent by the given user
+    public List<ChatMessage> findByUser(String username) {
+        List<ChatMessage> result = new ArrayList<>();
+        int userId = ChatMessage.findUser(username);
+        if (userId < 0) return result; // Unknown user: no messages
+        for (int i = 0; i < size; i++) {
+            if (userIds[i] == userId) result.add(get(i));
+        }
+        return result;
+    }
+
+    // Returns all messages of the given type
+    public List<ChatMessage> findByType(ChatMessage.Type type) {
+        List<ChatMessage> result = new ArrayList<>();
+        byte tag = (byte) type.ordinal();
+        for (int i = 0; i < size; i++) {
+            if (types[i] == tag) result.add(get(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+// Computes embeddings with an embedding model of an ollama server (POST /api/embeddings)
+public class OllamaEmbedder implements Embedder {
+    private static final long TIMEOUT_MILLIS = 10_000; // Per text; embedding is much faster than generation
+    private final OllamaHttpBackend server;
+    private final String model;
+
+    // Constructor: base URL of the ollama server and embedding model name (e.g. "nomic-embed-text")
+    public OllamaEmbedder(String endpoint, String model) {
+        this.server = new OllamaHttpBackend(endpoint, model);
+        this.model = model;
+    }
+
+    @Override
+    public float[] embed(String text, long timeoutMillis) throws IOException, TimeoutException {
+        if (timeoutMillis <= 0) throw new TimeoutException();
+        String body = "{\"model\":" + Json.quote(model) + ",\"prompt\":" + Json.quote(text) + "}";
+        float[] vector = Json.floatArrayField(server.post("/api/embeddings", body, Math.min(TIMEOUT_MILLIS, timeoutMillis)), "embedding");
+        if (vector == null || vector.length == 0) throw new IOException("No embedding from " + server.describe());
+        return vector;
+    }
+
+    @Override
+    public String describe() {
+        return server.describe();
+    }
+}
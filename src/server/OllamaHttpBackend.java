@@ -0,0 +1,60 @@
+package server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+// Calls a model through the HTTP API of an ollama server (POST /api/generate, no streaming)
+public class OllamaHttpBackend implements AiBackend {
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final String endpoint; // e.g. http://localhost:11434
+    private final String model;
+
+    // Constructor: base URL of the ollama server and model name
+    public OllamaHttpBackend(String endpoint, String model) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.model = model;
+    }
+
+    @Override
+    public String generate(String prompt, long timeoutMillis) throws IOException, TimeoutException {
+        String body = "{\"model\":" + Json.quote(model) + ",\"prompt\":" + Json.quote(prompt) + ",\"stream\":false}";
+        String json = post("/api/generate", body, timeoutMillis);
+        String response = Json.stringField(json, "response");
+        if (response == null) throw new IOException("No response field from " + endpoint);
+        return String.join(" ", response.strip().split("\\R")).trim(); // Lines joined by spaces, like the command backend
+    }
+
+    // Sends a JSON request and returns the JSON answer
+    String post(String path, String body, long timeoutMillis) throws IOException, TimeoutException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint + path))
+                .timeout(Duration.ofMillis(Math.max(1, timeoutMillis)))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        try {
+            HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException(endpoint + path + " answered " + response.statusCode());
+            }
+            return response.body();
+        } catch (HttpTimeoutException e) {
+            throw new TimeoutException(endpoint + path + " took longer than " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + endpoint, e);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return model + " at " + endpoint;
+    }
+}
@@ -0,0 +1,59 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Runs a model through the "ollama run <model>" command, one process per request
+public class OllamaProcessBackend implements AiBackend {
+    private final String model;
+
+    // Constructor: model name as known by ollama (e.g. "llama2")
+    public OllamaProcessBackend(String model) {
+        this.model = model;
+    }
+
+    @Override
+    public String generate(String prompt, long timeoutMillis) throws IOException, TimeoutException {
+        Process process = new ProcessBuilder("ollama", "run", model).start();
+        try {
+            // Write the prompt using the raw streams
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write((prompt + "\n").getBytes(StandardCharsets.UTF_8));
+            } // Closing the input stream signals end of input
+
+            // Drain the output on another thread, so the deadline can be enforced here
+            byte[][] output = new byte[1][];
+            Thread reader = Thread.startVirtualThread(() -> {
+                try {
+                    output[0] = process.getInputStream().readAllBytes();
+                } catch (IOException e) {
+                    output[0] = new byte[0];
+                }
+            });
+            if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("ollama run " + model + " took longer than " + timeoutMillis + " ms");
+            }
+            reader.join();
+            if (process.exitValue() != 0) {
+                throw new IOException("ollama run " + model + " exited with " + process.exitValue());
+            }
+
+            // Lines of the answer are joined by spaces
+            String text = new String(output[0], StandardCharsets.UTF_8);
+            return String.join(" ", text.strip().split("\\R")).trim();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for ollama", e);
+        } finally {
+            process.destroyForcibly(); // No-op if it already exited
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "ollama run " + model;
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Persistent outgoing connection from this node to one peer of the cluster.
+ * Messages are queued and sent in order by a dedicated virtual thread,
+ * which reconnects automatically when the peer goes down.
+ * The link runs over TLS, and each connection starts by answering the peer's
+ * challenge with a proof of the cluster secret.
+ */
+public class PeerLink {
+    private static final int MAX_QUEUED = 100_000; // Messages kept while the peer is unreachable
+    private static final long RETRY_DELAY_MILLIS = 1000; // Wait between reconnection attempts
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000; // Max wait for the peer's challenge
+    private static final long SEND_TIMEOUT_MILLIS = 5_000; // Max wait for queue space in sendWaiting
+
+    private final String localNodeId;
+    private final String peerNodeId;
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory socketFactory;
+    private final UnaryOperator<String> prover; // Answers a challenge with the proof of the cluster secret
+    private final Supplier<List<String>> syncLines; // State pushed to the peer on every (re)connection
+    private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private volatile boolean connected; // Whether the sender thread is draining the queue
+    private volatile Socket current; // Connection in use, if any
+    private volatile boolean overflowed; // Lines were dropped while connected: the link must be resynchronized
+
+    /**
+     * @param localNodeId id of this node, sent in the HELLO line
+     * @param peerNodeId id of the peer this link connects to
+     * @param host peer host
+     * @param port peer cluster port
+     * @param socketFactory creates the TLS sockets (trusting only the cluster's certificate)
+     * @param prover computes the HELLO proof from the peer's challenge
+     * @param syncLines supplies the lines describing local state to send after connecting
+     */
+    public PeerLink(String localNodeId, String peerNodeId, String host, int port, SSLSocketFactory socketFactory,
+                    UnaryOperator<String> prover, Supplier<List<String>> syncLines) {
+        this.localNodeId = localNodeId;
+        this.peerNodeId = peerNodeId;
+        this.host = host;
+        this.port = port;
+        this.socketFactory = socketFactory;
+        this.prover = prover;
+        this.syncLines = syncLines;
+    }
+
+    // Starts the sender thread
+    public void start() {
+        Thread.startVirtualThread(this::run);
+    }
+
+    /**
+     * Queues a protocol line for the peer without ever waiting, so it may be called while
+     * holding a room or session lock. If the queue is full while the peer is connected, the
+     * line is dropped and the link is re-established: the peer then receives the full state
+     * again and its mirrors request new history snapshots.
+     * @param line protocol line
+     * @return false if the line was dropped
+     */
+    public boolean send(String line) {
+        if (queue.offer(line)) return true;
+        if (connected) overflowed = true;
+        System.err.println("Cluster link to " + peerNodeId + " is full, dropping message");
+        return false;
+    }
+
+    /**
+     * Queues a protocol line, waiting (bounded) for queue space while the peer is connected,
+     * so bulk transfers such as a history snapshot are slowed down instead of losing lines.
+     * Must never be called while holding a lock.
+     * @param line protocol line
+     * @return false if the line was dropped
+     */
+    public boolean sendWaiting(String line) {
+        try {
+            if (queue.offer(line, connected ? SEND_TIMEOUT_MILLIS : 0, TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.println("Cluster link to " + peerNodeId + " is full, dropping message");
+        return false;
+    }
+
+    // Checks whether the peer is currently connected
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Connects, sends the handshake and drains the queue; reconnects on failure
+    private void run() {
+        List<String> retry = new ArrayList<>(); // Batch that failed to be sent and must be retried
+        boolean reported = false; // Avoids logging every failed reconnection attempt
+        while (true) {
+            // Lines are encoded into one batch and written straight to the socket stream
+            try (Socket socket = socketFactory.createSocket(host, port)) {
+                OutputStream out = socket.getOutputStream();
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                String challenge = new LineReader(socket.getInputStream()).readLine();
+                if (challenge == null || !challenge.startsWith("CHALLENGE\t")) {
+                    throw new IOException("no challenge from peer");
+                }
+                socket.setSoTimeout(0);
+                current = socket;
+                connected = true;
+                Thread.startVirtualThread(() -> watch(socket));
+                System.out.println("Cluster link to " + peerNodeId + " established");
+                reported = false;
+
+                StringBuilder batch = new StringBuilder();
+                batch.append("HELLO\t").append(localNodeId).append('\t')
+                        .append(prover.apply(challenge.substring(10))).append('\n');
+                for (String line : syncLines.get()) {
+                    batch.append(line).append('\n');
+                }
+                batch.append("SYNC_END\n");
+                for (String line : retry) {
+                    batch.append(line).append('\n');
+                }
+                out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                retry.clear();
+
+                while (true) {
+                    // Wait for a message, then send everything already queued in a single write
+                    String next = queue.take();
+                    if (overflowed) {
+                        // Lines were lost: start over with a fresh connection and a full resync
+                        overflowed = false;
+                        queue.clear();
+                        throw new IOException("queue overflowed, resynchronizing");
+                    }
+                    batch.setLength(0);
+                    List<String> sent = new ArrayList<>();
+                    do {
+                        batch.append(next).append('\n');
+                        sent.add(next);
+                    } while ((next = queue.poll()) != null);
+                    try {
+                        out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        retry.addAll(sent); // Resend this batch after reconnecting
+                        throw e;
+                    }
+                }
+            } catch (IOException e) {
+                connected = false;
+                current = null;
+                if (!reported) {
+                    System.err.println("Cluster link to " + peerNodeId + " unavailable: " + e.getMessage());
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // The peer sends nothing after its challenge, so a read only returns when the connection
+    // closes: the link is then marked down and closed at once, instead of at the next write
+    // (which a dead peer may still accept)
+    private void watch(Socket socket) {
+        try {
+            while (socket.getInputStream().read() >= 0) { }
+        } catch (IOException e) {
+            // Closed or failed: handled below
+        }
+        if (current == socket) connected = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
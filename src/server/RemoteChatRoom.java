@@ -0,0 +1,243 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local mirror of a room owned by another cluster node.
+ * It only holds the participants connected to this node: their messages are
+ * forwarded to the owner, and the owner relays every broadcast back so the
+ * mirror can deliver it locally and keep a copy of the history.
+ * The owner relays the room only while the mirror is subscribed: from the first local
+ * participant, whose join requests a history snapshot, until the last one leaves.
+ * The history snapshot is requested again until it arrives complete, since a snapshot
+ * can be cut short when the link to the owner fails or overflows, and a new one is
+ * requested whenever the link from the owner is re-established, since relays may have
+ * been lost meanwhile. Each request is numbered so lines of an abandoned snapshot are ignored.
+ * A snapshot is collected apart and replaces the history only once complete.
+ */
+public class RemoteChatRoom extends ChatRoom {
+    private static final long HISTORY_TIMEOUT_SECONDS = 5; // Max wait for the owner's history
+    private final ClusterNode cluster;
+    private final ReentrantLock snapshotLock = new ReentrantLock(); // Orders snapshot lines against relays and new requests
+    private final Condition snapshotDone = snapshotLock.newCondition(); // Signalled when receiving ends
+    private boolean subscribed; // The owner relays the room to this node
+    private int joining; // Participants waiting for the history before being added
+    private int snapshot; // Number of the snapshot being received
+    private boolean receiving; // A snapshot is on its way: relays are shown but not stored (the snapshot has them)
+    private MessageLog incoming; // Lines of the snapshot being received
+
+    // Constructor: creates the mirror; the first participant subscribes it
+    public RemoteChatRoom(String name, ClusterNode cluster) {
+        super(name);
+        this.cluster = cluster;
+    }
+
+    /**
+     * Asks the owner for a new snapshot if the mirror is subscribed, replacing the history
+     * held so far, and asks again if it is not complete in time.
+     */
+    public void requestHistory() {
+        snapshotLock.lock();
+        try {
+            if (subscribed) requestSnapshot();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Sends a numbered snapshot request, which also subscribes this node to the room's relays.
+    // Called under snapshotLock so requests and unsubscriptions reach the owner in order
+    // (cluster sends never wait).
+    private void requestSnapshot() {
+        int number = ++snapshot;
+        receiving = true;
+        incoming = new MessageLog();
+        cluster.requestHistory(getName(), number);
+        Thread.startVirtualThread(() -> retryHistory(number));
+    }
+
+    // Requests the snapshot again if the given request is still unanswered after the timeout
+    private void retryHistory(int number) {
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(HISTORY_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            return;
+        }
+        snapshotLock.lock();
+        try {
+            if (number == snapshot && receiving) {
+                System.err.println("Timed out waiting for history of room " + getName() + ", requesting it again");
+                requestSnapshot();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Adds a local participant and lets the owner record the entry (for the user's first connection here)
+    @Override
+    public void join(ClientConnection out, String username) {
+        enter();
+        boolean first;
+        snapshotLock.lock();
+        try {
+            joining--;
+            first = addParticipant(out, username);
+        } finally {
+            snapshotLock.unlock();
+        }
+        if (first) cluster.forwardRecord(getName(), ChatMessage.join(username));
+    }
+
+    // Re-adds a participant's new connection (used during reconnection)
+    @Override
+    public void rejoin(ClientConnection out, ClientConnection previous, String username) {
+        enter();
+        snapshotLock.lock();
+        try {
+            joining--;
+            super.rejoin(out, previous, username);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Subscribes the mirror if needed and waits (bounded) for the history, so the entering
+    // participant sees previous messages before live ones. The caller then adds the
+    // participant and decrements joining, under snapshotLock.
+    private void enter() {
+        snapshotLock.lock();
+        try {
+            joining++; // Keeps the mirror subscribed while waiting
+            if (!subscribed) {
+                subscribed = true;
+                requestSnapshot();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+        awaitHistory();
+    }
+
+    // Removes a local participant and lets the owner announce it (for the user's last connection here)
+    @Override
+    public void leave(ClientConnection out, String username) {
+        if (removeParticipant(out, username)) {
+            cluster.forwardPost(getName(), ChatMessage.leave(username));
+        }
+    }
+
+    // Once the last local participant is gone, the owner stops relaying the room here
+    // and the history is dropped until the next participant subscribes again
+    @Override
+    protected boolean removeParticipant(ClientConnection out, String username) {
+        snapshotLock.lock();
+        try {
+            boolean last = super.removeParticipant(out, username);
+            if (subscribed && joining == 0 && !hasParticipants()) {
+                subscribed = false;
+                receiving = false;
+                incoming = null;
+                replaceHistory(new MessageLog());
+                snapshotDone.signalAll();
+                cluster.unsubscribe(getName());
+            }
+            return last;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Messages are broadcast by the owner, which relays them back to this mirror
+    @Override
+    public void broadcast(ChatMessage message) {
+        cluster.forwardPost(getName(), message);
+    }
+
+    // History-only records are also kept by the owner
+    @Override
+    public void record(ChatMessage message) {
+        cluster.forwardRecord(getName(), message);
+    }
+
+    // The owner node persists the history, so the mirror never touches the file
+    @Override
+    public void saveMessagesToFile() { }
+
+    @Override
+    public void loadMessagesFromFile() { }
+
+    // --- Called by the cluster node for messages relayed by the owner ---
+
+    // A message broadcast by the owner. While a snapshot is on its way the message is part
+    // of it, so it is only shown to the local participants.
+    public void onDeliver(ChatMessage message) {
+        snapshotLock.lock();
+        try {
+            if (!subscribed) return; // Relayed before the owner got the unsubscription
+            if (receiving) {
+                sendToParticipants(message);
+            } else {
+                deliver(message);
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // A history-only record made by the owner (already part of a snapshot on its way)
+    public void onAppend(ChatMessage message) {
+        snapshotLock.lock();
+        try {
+            if (subscribed && !receiving) append(message);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // One line of a history snapshot
+    public void onHistory(int number, ChatMessage message) {
+        snapshotLock.lock();
+        try {
+            if (number == snapshot && receiving) incoming.add(message);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // End of a history snapshot: it replaces the history and releases the waiting joiners
+    public void onHistoryEnd(int number) {
+        snapshotLock.lock();
+        try {
+            if (number == snapshot && receiving) {
+                receiving = false;
+                replaceHistory(incoming);
+                incoming = null;
+                snapshotDone.signalAll();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Waits (bounded) for the snapshot on its way; if it is late, the retry requests it again.
+    // Nothing is awaited while the owner is down: its history cannot arrive before it is back.
+    @Override
+    protected void awaitHistory() {
+        if (!cluster.isOwnerConnected(getName())) return;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(HISTORY_TIMEOUT_SECONDS);
+        snapshotLock.lock();
+        try {
+            long remaining;
+            while (receiving && (remaining = deadline - System.nanoTime()) > 0) {
+                snapshotDone.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+}
@@ -5,8 +5,6 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -14,31 +12,90 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import javax.net.ssl.*;
-
 import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
 
 public class ServerMain {
     private static final int PORT = 12345;
+    private static final String CLUSTER_FILE = "cluster.txt";
+    private static final String TLS_FILE = "tls.txt";
+    // Cluster membership (null when running as a single server)
+    private static ClusterNode cluster;
+    // File where sessions are persisted (one per node in cluster mode)
+    private static String sessionsFile = "sessions.txt";
+    // File where the tokens of ended sessions are kept until they expire
+    private static String endedSessionsFile = "ended_sessions.txt";
+    // Signs stateless tokens when started with -Dchat.tokens=signed (null: tokens are kept in the session store)
+    private static TokenSigner signer;
+    private static final long SESSION_VALIDITY_MILLIS = 60 * 60 * 1000; // One hour
+    // Runs the model requests of all AI rooms (limited and fairly scheduled)
+    private static AiWorkerPool aiPool;
     // Stores all active chat rooms
     private static final Map<String, ChatRoom> chatRooms = new HashMap<>();
     private static final ReentrantReadWriteLock roomLock = new ReentrantReadWriteLock();
     // Stores all active sessions mapped by token
     private static final Map<String, Session> tokenSessions = new HashMap<>();
+    // Tokens of sessions ended by /logout mapped to their expiry (also protected by sessionLock), so that a
+    // copy of the session sent by a node that missed the logout cannot bring the token back
+    private static final Map<String, Long> endedSessions = new HashMap<>();
     private static final ReentrantReadWriteLock sessionLock = new ReentrantReadWriteLock();
+    // Released once the saved sessions are restored (they are loaded after the listener is up)
+    private static final CountDownLatch sessionsRestored = new CountDownLatch(1);
+    // Set once sessions are restored and the histories of their local rooms are loaded
+    private static volatile boolean ready;
     
 
+    // Usage: java server.ServerMain [nodeId [clusterFile]]
+    // Without arguments a single server runs on the default port; with a node id
+    // the server joins the cluster described in the cluster file.
     public static void main(String[] args) {
-        // Configure SSL keystore for secure connections
-        System.setProperty("javax.net.ssl.keyStore", "server_keystore.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+        // TLS key store and protocol profile for client connections
+        TlsConfig tls;
+        try {
+            tls = TlsConfig.fromFile(TLS_FILE);
+        } catch (IOException e) {
+            System.err.println("Invalid TLS configuration: " + e.getMessage());
+            return;
+        }
+
+        int port = PORT;
+        if (args.length > 0) {
+            try {
+                cluster = ClusterNode.fromFile(args.length > 1 ? args[1] : CLUSTER_FILE, args[0], tls);
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Invalid cluster configuration: " + e.getMessage());
+                return;
+            }
+            port = cluster.getClientPort();
+            sessionsFile = "sessions_" + cluster.getNodeId() + ".txt";
+            endedSessionsFile = "ended_sessions_" + cluster.getNodeId() + ".txt";
+        }
 
+        if ("signed".equals(System.getProperty("chat.tokens"))) {
+            try {
+                signer = TokenSigner.fromFiles("token_keys.txt", "revoked_tokens.txt");
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Invalid token keys: " + e.getMessage());
+                return;
+            }
+        }
+
+        try {
+            aiPool = AiWorkerPool.fromFile("ai.txt");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid AI configuration: " + e.getMessage());
+            return;
+        }
+        aiPool.start();
+
+        long bootStart = System.currentTimeMillis();
         UserManager userManager = new UserManager("users.txt");
-    
-        // Load previously saved sessions on server startup
-        loadSessionsFromFile("sessions.txt");
+
+        // Connect to the other nodes (session sync waits for the restore below)
+        if (cluster != null) {
+            cluster.start(userManager);
+        }
     
         // Save chat history when the server is shutting down
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -54,8 +111,10 @@ public class ServerMain {
         }));
         
         // Start secure SSL server socket to accept clients
-        try (SSLServerSocket serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(PORT)) {
-            System.out.println("Chat server started on port " + PORT);
+        try (SSLServerSocket serverSocket = tls.createServerSocket(port)) {
+            System.out.println("Chat server started on port " + port + " (TLS " + tls.describe() + ")");
+            // Restore saved state in the background, so clients can connect right away
+            Thread.startVirtualThread(() -> warmStart(bootStart));
             // Accept client connections continuously
             while (true) {
                 Socket clientSocket = serverSocket.accept();
@@ -73,53 +132,164 @@ public class ServerMain {
         }
     }
     
-    // Gets an existing room or creates a new one (with AI support if prefixed "AI:")
+    // Restores the saved sessions, then waits for the histories of their local rooms, which
+    // load in parallel. Requests that need a session wait for the restore; rooms are
+    // usable immediately and only reading their history waits.
+    private static void warmStart(long bootStart) {
+        loadSessionsFromFile(sessionsFile);
+        loadEndedSessions(endedSessionsFile);
+        sessionsRestored.countDown();
+        long sessionsTime = System.currentTimeMillis() - bootStart;
+        for (Session session : getSessions().values()) {
+            for (String roomName : session.getRoomNames()) {
+                if (cluster == null || cluster.isLocal(roomName)) getOrCreateRoom(roomName); // Starts loading its history
+            }
+        }
+
+        List<ChatRoom> rooms;
+        roomLock.readLock().lock();
+        try {
+            rooms = new ArrayList<>(chatRooms.values());
+        } finally {
+            roomLock.readLock().unlock();
+        }
+        int loaded = 0;
+        for (ChatRoom room : rooms) {
+            if (room instanceof RemoteChatRoom) continue; // History comes from its owner node
+            room.awaitHistory();
+            loaded++;
+        }
+
+        ready = true;
+        System.out.println("Server ready in " + (System.currentTimeMillis() - bootStart) + " ms: "
+                + getSessions().size() + " sessions restored in " + sessionsTime + " ms, "
+                + loaded + " room histories loaded");
+    }
+
+    // Checks whether the saved state is fully restored (reported to STATUS requests)
+    public static boolean isReady() {
+        return ready;
+    }
+
+    // Waits until the saved sessions are restored
+    private static void awaitSessions() {
+        try {
+            sessionsRestored.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the cluster membership, or null when running as a single server
+    public static ClusterNode getCluster() {
+        return cluster;
+    }
+
+    // Returns the AI execution service shared by all AI rooms
+    public static AiWorkerPool getAiPool() {
+        return aiPool;
+    }
+
+    // Returns the file where sessions are persisted
+    public static String getSessionsFile() {
+        return sessionsFile;
+    }
+
+    // Gets an existing room or creates a new one (with AI support if prefixed "AI:").
+    // In cluster mode, rooms owned by another node are created as local mirrors, which
+    // subscribe to the owner when their first participant joins.
     public static ChatRoom getOrCreateRoom(String roomName) {
+        ChatRoom room;
         roomLock.writeLock().lock();
         try {
-            return chatRooms.computeIfAbsent(roomName, name -> {
-                ChatRoom room;
-                if (name.startsWith("AI:")) {
-                    String prompt = "You are a helpful bot assisting with this conversation.";
-                    room = new AiChatRoom(name, prompt);
-                } else {
-                    room = new ChatRoom(name);
-                }
-                room.loadMessagesFromFile(); // Load saved messages from file
+            room = chatRooms.get(roomName);
+            if (room != null) {
                 return room;
-            });
-            
+            }
+            if (cluster != null && !cluster.isLocal(roomName)) {
+                room = new RemoteChatRoom(roomName, cluster);
+            } else if (roomName.startsWith("AI:")) {
+                String prompt = "You are a helpful bot assisting with this conversation.";
+                room = new AiChatRoom(roomName, prompt);
+            } else {
+                room = new ChatRoom(roomName);
+            }
+            chatRooms.put(roomName, room);
         } finally {
             roomLock.writeLock().unlock();
         }
+        if (room instanceof RemoteChatRoom) {
+            return room;
+        }
+        if (cluster != null) { // Sent after releasing the room map lock
+            cluster.announceRoom(roomName); // Make the room visible on the other nodes
+        }
+        room.loadMessagesInBackground(); // Load saved messages without blocking the room map
+        return room;
+    }
+
+    // Returns an existing room without creating it (null if unknown)
+    public static ChatRoom findRoom(String roomName) {
+        roomLock.readLock().lock();
+        try {
+            return chatRooms.get(roomName);
+        } finally {
+            roomLock.readLock().unlock();
+        }
     }
     
-    // Returns the list of all available room names
+    // Returns the list of all available room names (including rooms on other nodes)
     public static List<String> getRoomNames() {
+        List<String> names;
         roomLock.readLock().lock();
         try {
-            return new ArrayList<>(chatRooms.keySet());
+            names = new ArrayList<>(chatRooms.keySet());
         } finally {
             roomLock.readLock().unlock();
         }
+        if (cluster != null) {
+            for (String name : cluster.getRemoteRoomNames()) {
+                if (!names.contains(name)) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    // Returns the signer of stateless tokens, or null if tokens are kept in the session store
+    public static TokenSigner getSigner() {
+        return signer;
     }
 
-    // Creates a new session and returns the generated token
-    public static String createSession(String username, ChatRoom room, PrintWriter writer) {
+    // Creates a new session and returns the generated token.
+    // Signed tokens carry the session themselves, so nothing is stored or written to disk.
+    public static String createSession(String username, ClientConnection writer) {
+        if (signer != null) {
+            return signer.issue(username, List.of(), System.currentTimeMillis() + SESSION_VALIDITY_MILLIS);
+        }
         String token = UUID.randomUUID().toString(); // Generate unique token
+        awaitSessions();
+        Session session = new Session(username, List.of(), writer, SESSION_VALIDITY_MILLIS);
         sessionLock.writeLock().lock();
         try {
-            long oneHour = 60 * 60 * 1000;
-            tokenSessions.put(token, new Session(username, room, writer, oneHour));
-            saveSessionsToFile("sessions.txt"); // Save to disk after creating
-            return token;
+            tokenSessions.put(token, session);
+            saveSessionsToFile(sessionsFile); // Save to disk after creating
         } finally {
             sessionLock.writeLock().unlock();
         }
+        if (cluster != null) {
+            cluster.replicateSession(token, session); // Allow RECONNECT on any node (sent outside the lock)
+        }
+        return token;
     }
     
     // Retrieves a valid (non-expired) session using the token
     public static Session getSession(String token) {
+        if (TokenSigner.isSignedToken(token)) {
+            TokenSigner.Claims claims = (signer != null) ? signer.verify(token) : null;
+            if (claims == null) return null;
+            return new Session(claims.username, claims.rooms, null, claims.expiryTimeMillis - System.currentTimeMillis());
+        }
+        awaitSessions();
         sessionLock.readLock().lock();
         try {
             Session session = tokenSessions.get(token);
@@ -132,17 +302,126 @@ public class ServerMain {
         }
     }
 
-    // Saves all sessions to a file for persistence
+    // Persists a change of an existing session (e.g. its rooms) and publishes it to the other nodes.
+    // Returns the token the client should keep: a signed token is re-issued with the new rooms.
+    public static String updateSession(String token, Session session) {
+        if (TokenSigner.isSignedToken(token)) {
+            TokenSigner.Claims claims = (signer != null) ? signer.verify(token) : null;
+            if (claims == null) return token; // Revoked meanwhile: keep it, the next RECONNECT fails anyway
+            return signer.issue(claims.id, claims.username, session.getRoomNames(), claims.expiryTimeMillis);
+        }
+        saveSessionsToFile(sessionsFile); // So RECONNECT restores the subscriptions after a restart
+        if (cluster != null) {
+            cluster.replicateSession(token, session);
+        }
+        return token;
+    }
+
+    // Ends a session on logout: signed tokens are revoked, stored sessions are removed
+    public static void endSession(String token) {
+        if (TokenSigner.isSignedToken(token)) {
+            TokenSigner.Claims claims = (signer != null) ? signer.verify(token) : null;
+            if (claims == null) return;
+            signer.revoke(claims.id, claims.expiryTimeMillis);
+            if (cluster != null) {
+                cluster.replicateRevocation(claims.id, claims.expiryTimeMillis);
+            }
+            return;
+        }
+        Session session = getSession(token);
+        if (session == null) return;
+        removeSession(token, session.getExpiryTimeMillis());
+        if (cluster != null) {
+            cluster.replicateSessionEnd(token, session.getExpiryTimeMillis());
+        }
+    }
+
+    // Removes a stored session and keeps its token as ended until it expires
+    // (also called for logouts on other nodes)
+    public static void removeSession(String token, long expiryTimeMillis) {
+        awaitSessions();
+        sessionLock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            endedSessions.values().removeIf(expiry -> expiry < now); // Keep the list small
+            if (expiryTimeMillis > now) {
+                endedSessions.put(token, expiryTimeMillis);
+                saveEndedSessions(endedSessionsFile);
+            }
+            if (tokenSessions.remove(token) != null) {
+                saveSessionsToFile(sessionsFile);
+            }
+        } finally {
+            sessionLock.writeLock().unlock();
+        }
+    }
+
+    // Returns a copy of the ended sessions (token -> expiry), sent to peers so they drop them too
+    public static Map<String, Long> getEndedSessions() {
+        awaitSessions();
+        sessionLock.readLock().lock();
+        try {
+            return new HashMap<>(endedSessions);
+        } finally {
+            sessionLock.readLock().unlock();
+        }
+    }
+
+    // Stores a session created or updated on another cluster node
+    public static void putReplicatedSession(String token, String sessionLine) {
+        putReplicatedSessions(Map.of(token, sessionLine));
+    }
+
+    // Stores a batch of sessions from another node (e.g. its state after a reconnection) and saves once.
+    // A copy replaces the local session only if it was updated later, so an old copy from a peer
+    // that was away cannot undo a newer change (such as a /leave) made here.
+    public static void putReplicatedSessions(Map<String, String> sessionLines) {
+        Map<String, Session> replicas = new HashMap<>();
+        for (Map.Entry<String, String> entry : sessionLines.entrySet()) {
+            Session replica = Session.fromFileString(entry.getKey(), entry.getValue(), null); // Client is connected elsewhere
+            if (replica != null) replicas.put(entry.getKey(), replica);
+        }
+        if (replicas.isEmpty()) return;
+        awaitSessions();
+        sessionLock.writeLock().lock();
+        try {
+            boolean changed = false;
+            for (Map.Entry<String, Session> entry : replicas.entrySet()) {
+                if (endedSessions.containsKey(entry.getKey())) continue; // Logged out, possibly while the sender was away
+                Session replica = entry.getValue();
+                Session existing = tokenSessions.get(entry.getKey());
+                if (existing != null) {
+                    if (existing.getUpdatedMillis() >= replica.getUpdatedMillis()) continue; // Ours is as new or newer
+                    replica.setWriter(existing.getWriter()); // Keep the live connection, if any
+                }
+                tokenSessions.put(entry.getKey(), replica);
+                changed = true;
+            }
+            if (changed) saveSessionsToFile(sessionsFile);
+        } finally {
+            sessionLock.writeLock().unlock();
+        }
+    }
+
+    // Returns a copy of all sessions mapped by token
+    public static Map<String, Session> getSessions() {
+        awaitSessions();
+        sessionLock.readLock().lock();
+        try {
+            return new HashMap<>(tokenSessions);
+        } finally {
+            sessionLock.readLock().unlock();
+        }
+    }
+
+    // Saves all sessions to a file for persistence (never before they were restored)
     public static void saveSessionsToFile(String path) {
+        awaitSessions();
         sessionLock.readLock().lock();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
             for (Map.Entry<String, Session> entry : tokenSessions.entrySet()) {
                 String token = entry.getKey();
-                Session s = entry.getValue();
-                writer.write(token + ":" + s.getUsername() + ":" +
-                            (s.getRoom() != null ? s.getRoom().getName() : "") + ":" +
-                            (s.getExpiryTimeMillis() - System.currentTimeMillis()) + ":" +
-                            System.currentTimeMillis());
+                writer.write(token + ":" + entry.getValue().toFileString());
                 writer.newLine();
             }
         } catch (IOException e) {
@@ -165,8 +444,7 @@ public class ServerMain {
     
                 String token = parts[0];
                 String sessionLine = parts[1];
-                PrintWriter dummyWriter = new PrintWriter(OutputStream.nullOutputStream(), true);
-                Session s = Session.fromFileString(token, sessionLine, dummyWriter);
+                Session s = Session.fromFileString(token, sessionLine, null); // No client connected yet
     
                 if (s != null && !s.isExpired()) {
                     validSessions.put(token, s);
@@ -184,19 +462,46 @@ public class ServerMain {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
             for (Map.Entry<String, Session> entry : validSessions.entrySet()) {
                 String token = entry.getKey();
-                Session s = entry.getValue();
-                writer.write(token + ":" + s.getUsername() + ":" +
-                             (s.getRoom() != null ? s.getRoom().getName() : "") + ":" +
-                             (s.getExpiryTimeMillis() - System.currentTimeMillis()) + ":" +
-                             System.currentTimeMillis());
+                writer.write(token + ":" + entry.getValue().toFileString());
                 writer.newLine();
             }
         } catch (IOException e) {
-            System.err.println("Error updating sessions.txt: " + e.getMessage());
+            System.err.println("Error updating " + path + ": " + e.getMessage());
+        } finally {
+            sessionLock.writeLock().unlock();
+        }
+    }
+
+    // Loads the ended sessions that have not expired yet
+    private static void loadEndedSessions(String path) {
+        long now = System.currentTimeMillis();
+        sessionLock.writeLock().lock();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(":");
+                if (parts.length == 2 && Long.parseLong(parts[1]) > now) {
+                    endedSessions.put(parts[0], Long.parseLong(parts[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // No session ended yet
         } finally {
             sessionLock.writeLock().unlock();
         }
     }
+
+    // Rewrites the ended sessions file (caller holds the write lock)
+    private static void saveEndedSessions(String path) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
+            for (Map.Entry<String, Long> entry : endedSessions.entrySet()) {
+                writer.write(entry.getKey() + ":" + entry.getValue());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving ended sessions: " + e.getMessage());
+        }
+    }
     
     
 
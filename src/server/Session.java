@@ -1,77 +1,153 @@
 package server;
 
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Represents a user session with a unique token.
- * Stores the username, associated room (if any), output writer, and expiration time.
+ * Stores the username, the rooms the user is subscribed to, output writer, and expiration time.
+ * Rooms are kept by name and only resolved when the user reconnects, so sessions replicated
+ * from other nodes do not create mirrors of rooms nobody uses here.
  */
 public class Session {
     private final String username;
-    private ChatRoom room;
-    private PrintWriter writer;
+    private final Set<String> rooms = new LinkedHashSet<>(); // Names of the subscribed rooms, in join order
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Protects rooms
+    private ClientConnection writer;
     private final long expiryTimeMillis; // Absolute expiration timestamp
+    private volatile long updatedMillis = System.currentTimeMillis(); // Last change of the subscriptions (newer copy wins between nodes)
 
     // Constructor initializes session data and calculates expiration time
-    public Session(String username, ChatRoom room, PrintWriter writer, long validityMillis) {
+    public Session(String username, Collection<String> rooms, ClientConnection writer, long validityMillis) {
         this.username = username;
-        this.room = room;
+        this.rooms.addAll(rooms);
         this.writer = writer;
         this.expiryTimeMillis = System.currentTimeMillis() + validityMillis;
     }
     // Getter for username
     public String getUsername() { return username; }
-    // Getters and setters for the chat room
-    public ChatRoom getRoom() { return room; }
-    public void setRoom(ChatRoom room) { this.room = room; }
     // Getters and setters for the writer (used to send messages to the client)
-    public PrintWriter getWriter() { return writer; }
-    public void setWriter(PrintWriter writer) { this.writer = writer; }
+    public ClientConnection getWriter() { return writer; }
+    public void setWriter(ClientConnection writer) { this.writer = writer; }
     // Checks whether the session has expired
     public boolean isExpired() {
         return System.currentTimeMillis() > expiryTimeMillis;
     }
 
+    // Returns the subscribed rooms, in join order, creating them (or their mirrors) if needed
+    public List<ChatRoom> getRooms() {
+        List<ChatRoom> result = new ArrayList<>();
+        for (String roomName : getRoomNames()) {
+            result.add(ServerMain.getOrCreateRoom(roomName));
+        }
+        return result;
+    }
+
+    // Adds a room to the subscriptions
+    public void addRoom(ChatRoom room) {
+        lock.writeLock().lock();
+        try {
+            rooms.add(room.getName());
+            updatedMillis = System.currentTimeMillis();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Removes a room from the subscriptions
+    public void removeRoom(ChatRoom room) {
+        lock.writeLock().lock();
+        try {
+            rooms.remove(room.getName());
+            updatedMillis = System.currentTimeMillis();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns the names of the subscribed rooms, in join order
+    public List<String> getRoomNames() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(rooms);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     /**
      * Converts this session to a string format for saving to a file.
-     * Format: username:roomName:remainingTime:creationTimestamp
+     * Format: username:room1,room2,...:remainingTime:savedTimestamp:updatedTimestamp
      */
     public String toFileString() {
-        String roomName = (room != null) ? room.getName() : "";
-        return String.format("%s:%s:%s:%d", username, roomName, expiryTimeMillis, System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        return String.format("%s:%s:%d:%d:%d", username, String.join(",", getRoomNames()), expiryTimeMillis - now, now, updatedMillis);
     }
 
     /**
      * Recreates a Session object from a string line in the sessions file.
+     * Room names may contain ':' (e.g. "AI:help"), so the numeric fields are read from the end.
+     * Lines written before the update timestamp was added count as updated when they were saved.
      * @param token Token string (not used here but may be relevant externally)
      * @param line Encoded session info from file
-     * @param dummyWriter Placeholder PrintWriter since real client writer is unavailable
+     * @param writer Client connection, or null since the client is not connected yet
      * @return Valid Session or null if invalid/expired
      */
-    public static Session fromFileString(String token, String line, PrintWriter dummyWriter) {
+    public static Session fromFileString(String token, String line, ClientConnection writer) {
         try {
-            String[] parts = line.split(":");
-            if (parts.length < 4) return null;
-    
-            String username = parts[0];
-            String roomName = parts[1].isEmpty() ? null : parts[1];
-            long delta = Long.parseLong(parts[2]);           // Remaining time when saved
-            long creationTime = Long.parseLong(parts[3]);     // Timestamp when saved
-    
+            int userEnd = line.indexOf(':');
+            int updatedStart = line.lastIndexOf(':');
+            int creationStart = line.lastIndexOf(':', updatedStart - 1);
+            int deltaStart = line.lastIndexOf(':', creationStart - 1);
+            int creationEnd = updatedStart;
+            long updated;
+            if (deltaStart > userEnd && isNumber(line.substring(deltaStart + 1, creationStart))) {
+                updated = Long.parseLong(line.substring(updatedStart + 1));
+            } else { // Old format without the update timestamp
+                deltaStart = creationStart;
+                creationStart = updatedStart;
+                creationEnd = line.length();
+                updated = -1;
+            }
+            if (userEnd < 0 || deltaStart <= userEnd) return null;
+
+            String username = line.substring(0, userEnd);
+            String roomList = line.substring(userEnd + 1, deltaStart);
+            long delta = Long.parseLong(line.substring(deltaStart + 1, creationStart)); // Remaining time when saved
+            long creationTime = Long.parseLong(line.substring(creationStart + 1, creationEnd)); // Timestamp when saved
+
             long expiryTimeMillis = creationTime + delta;
             long remaining = expiryTimeMillis - System.currentTimeMillis();
             if (remaining <= 0) return null; // Session already expired
-    
-            ChatRoom room = (roomName != null) ? ServerMain.getOrCreateRoom(roomName) : null;
-            return new Session(username, room, dummyWriter, remaining);
+
+            List<String> rooms = new ArrayList<>();
+            for (String roomName : roomList.split(",")) {
+                if (!roomName.isEmpty()) rooms.add(roomName);
+            }
+            Session session = new Session(username, rooms, writer, remaining);
+            session.updatedMillis = (updated >= 0) ? updated : creationTime;
+            return session;
         } catch (Exception e) {
             return null; // Fail-safe for malformed lines
         }
     }
-    
+
+    private static boolean isNumber(String field) {
+        return !field.isEmpty() && field.chars().allMatch(c -> (c >= '0' && c <= '9') || c == '-');
+    }
+
     // Getter for the absolute expiration time
     public long getExpiryTimeMillis() {
         return expiryTimeMillis;
     }
-    
+
+    // Returns when the subscriptions last changed (compared when a copy arrives from another node)
+    public long getUpdatedMillis() {
+        return updatedMillis;
+    }
+
 }
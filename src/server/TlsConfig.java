@@ -0,0 +1,243 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * TLS setup of the client listener and of the links between cluster nodes, built from
+ * a configuration file instead of the global javax.net.ssl system properties.
+ *
+ * Configuration file, one setting per line ('#' starts a comment):
+ *   keystore server_keystore.jks          key store file
+ *   keystore-type JKS                     JKS or PKCS12
+ *   keystore-password-env CHAT_KS_PASS    read the password from an environment variable,
+ *   keystore-password-file secret.txt     or from the first line of a file,
+ *   keystore-password changeit            or give it inline (development only)
+ *   key-alias chat-ec                     entry to serve (e.g. an ECDSA P-256 key), default: any
+ *   profile fast                          "default" (JVM settings) or "fast" (see below)
+ *
+ * The "fast" profile allows TLS 1.3 only, with the AEAD suites AES-GCM and
+ * ChaCha20-Poly1305, and X25519/P-256 key exchange: one round trip per handshake and
+ * no legacy suites. Combined with an ECDSA P-256 key, signatures are also much
+ * cheaper than with RSA.
+ *
+ * There is no default password: the server refuses to start unless one of the
+ * password settings is given.
+ */
+public class TlsConfig {
+    private static final String[] FAST_PROTOCOLS = { "TLSv1.3" };
+    private static final String[] FAST_CIPHER_SUITES = {
+            "TLS_AES_128_GCM_SHA256", "TLS_CHACHA20_POLY1305_SHA256", "TLS_AES_256_GCM_SHA384" };
+    private static final String[] FAST_NAMED_GROUPS = { "x25519", "secp256r1" };
+    private static final String[] FAST_SIGNATURE_SCHEMES = {
+            "ecdsa_secp256r1_sha256", "ed25519", "rsa_pss_rsae_sha256", "rsa_pss_pss_sha256" };
+
+    private String keystorePath = "server_keystore.jks";
+    private String keystoreType = "JKS";
+    private char[] keystorePassword; // Required: set by one of the keystore-password settings
+    private String keyAlias; // null: let the JVM choose
+    private String profile = "default";
+
+    private TlsConfig() { }
+
+    /**
+     * Reads the TLS configuration.
+     * @param path path to the configuration file
+     * @return the configuration
+     * @throws IOException if the file is missing, contains an invalid line, or configures
+     *                     no password source, or if the password cannot be read
+     */
+    public static TlsConfig fromFile(String path) throws IOException {
+        TlsConfig config = new TlsConfig();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length != 2) throw new IOException("Invalid TLS setting: " + line);
+                switch (parts[0]) {
+                    case "keystore" -> config.keystorePath = parts[1];
+                    case "keystore-type" -> config.keystoreType = parts[1];
+                    case "keystore-password" -> config.keystorePassword = parts[1].toCharArray();
+                    case "keystore-password-env" -> {
+                        String value = System.getenv(parts[1]);
+                        if (value == null) throw new IOException("Environment variable " + parts[1] + " is not set");
+                        config.keystorePassword = value.toCharArray();
+                    }
+                    case "keystore-password-file" -> {
+                        String value = Files.readAllLines(Path.of(parts[1])).stream().findFirst().orElse("");
+                        config.keystorePassword = value.strip().toCharArray();
+                    }
+                    case "key-alias" -> config.keyAlias = parts[1];
+                    case "profile" -> {
+                        if (!parts[1].equals("default") && !parts[1].equals("fast")) {
+                            throw new IOException("Unknown TLS profile: " + parts[1]);
+                        }
+                        config.profile = parts[1];
+                    }
+                    default -> throw new IOException("Unknown TLS setting: " + line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            throw new IOException("Missing " + path + " (it must name the key store and its password source)");
+        }
+        if (config.keystorePassword == null) {
+            throw new IOException("No key store password in " + path
+                    + ": set keystore-password-env, keystore-password-file or keystore-password");
+        }
+        return config;
+    }
+
+    /**
+     * Creates the listening socket for chat clients with this configuration.
+     * @param port port to listen on
+     * @return the server socket
+     * @throws IOException if the key store cannot be loaded or the socket cannot be opened
+     */
+    public SSLServerSocket createServerSocket(int port) throws IOException {
+        SSLContext context = createContext();
+        SSLServerSocket serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port);
+        if (profile.equals("fast")) {
+            SSLParameters parameters = serverSocket.getSSLParameters();
+            parameters.setProtocols(FAST_PROTOCOLS);
+            parameters.setCipherSuites(FAST_CIPHER_SUITES);
+            parameters.setNamedGroups(FAST_NAMED_GROUPS);
+            parameters.setSignatureSchemes(FAST_SIGNATURE_SCHEMES);
+            parameters.setUseCipherSuitesOrder(true); // AES-GCM first: hardware accelerated on most servers
+            serverSocket.setSSLParameters(parameters);
+        }
+        return serverSocket;
+    }
+
+    /**
+     * Creates the socket factory for links to other cluster nodes. A peer is trusted only
+     * if its certificate is in this node's key store (the nodes of a cluster share it),
+     * so a link cannot be intercepted by a server without the cluster key.
+     * @return factory for client sockets to peers
+     * @throws IOException if the key store cannot be loaded
+     */
+    public SSLSocketFactory createPeerSocketFactory() throws IOException {
+        try {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(loadKeyStore());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, factory.getTrustManagers(), null);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot trust key store " + keystorePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Loads the configured key store
+    private KeyStore loadKeyStore() throws IOException {
+        try (InputStream in = new FileInputStream(keystorePath)) {
+            KeyStore keyStore = KeyStore.getInstance(keystoreType);
+            keyStore.load(in, keystorePassword);
+            return keyStore;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load key store " + keystorePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Loads the key store and builds an SSL context serving its key
+    private SSLContext createContext() throws IOException {
+        try {
+            KeyStore keyStore = loadKeyStore();
+            if (keyAlias != null && !keyStore.isKeyEntry(keyAlias)) {
+                throw new IOException("No key '" + keyAlias + "' in " + keystorePath);
+            }
+
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keyStore, keystorePassword);
+            KeyManager[] keyManagers = factory.getKeyManagers();
+            if (keyAlias != null) {
+                keyManagers = new KeyManager[] { new AliasKeyManager((X509ExtendedKeyManager) keyManagers[0], keyAlias) };
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load key store " + keystorePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Returns a short description for the startup log
+    public String describe() {
+        return "profile " + profile + ", key store " + keystorePath + (keyAlias != null ? " (" + keyAlias + ")" : "");
+    }
+
+    // Key manager that always serves the configured key store entry
+    // (when the handshake asks for its key type, e.g. "EC" or "RSA")
+    private static class AliasKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager delegate;
+        private final String alias;
+
+        AliasKeyManager(X509ExtendedKeyManager delegate, String alias) {
+            this.delegate = delegate;
+            this.alias = alias;
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return matches(keyType) ? alias : null;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return matches(keyType) ? alias : null;
+        }
+
+        private boolean matches(String keyType) {
+            PrivateKey key = delegate.getPrivateKey(alias);
+            return key != null && key.getAlgorithm().equals(keyType);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return delegate.getPrivateKey(alias);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return delegate.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return delegate.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return delegate.chooseClientAlias(keyType, issuers, socket);
+        }
+    }
+}
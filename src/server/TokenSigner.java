@@ -0,0 +1,237 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and verifies stateless session tokens.
+ * A token carries the username, subscribed rooms and expiry, signed with HMAC-SHA256:
+ *   v1.keyId.base64url(id \n username \n rooms \n expiry).base64url(signature)
+ * so RECONNECT can be verified on any node without a session lookup or disk I/O.
+ *
+ * Keys are read from a file with one "keyId:base64Secret" per line. The first key signs
+ * new tokens and every key is accepted for verification, so a key is rotated by adding a
+ * new first line and removing the old one once its tokens have expired.
+ * Logged out tokens are kept in a small revocation list until they expire.
+ */
+public class TokenSigner {
+    private static final String VERSION = "v1";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Map<String, byte[]> keys = new LinkedHashMap<>(); // keyId -> secret, first one signs
+    private final String activeKeyId;
+    private final Map<String, Long> revoked = new HashMap<>(); // Token id -> expiry
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Protects revoked
+    private final String revokedPath;
+
+    // Contents of a valid token
+    public static class Claims {
+        public final String id;
+        public final String username;
+        public final List<String> rooms;
+        public final long expiryTimeMillis;
+
+        Claims(String id, String username, List<String> rooms, long expiryTimeMillis) {
+            this.id = id;
+            this.username = username;
+            this.rooms = rooms;
+            this.expiryTimeMillis = expiryTimeMillis;
+        }
+    }
+
+    private TokenSigner(String activeKeyId, String revokedPath) {
+        this.activeKeyId = activeKeyId;
+        this.revokedPath = revokedPath;
+    }
+
+    /**
+     * Loads the signing keys (creating a first random key if the file does not exist)
+     * and the revocation list.
+     * @param keysPath file with "keyId:base64Secret" lines, first one is the active key
+     * @param revokedPath file with "tokenId:expiry" lines of revoked tokens
+     * @return the configured signer
+     * @throws IOException if the key file cannot be read or created
+     */
+    public static TokenSigner fromFiles(String keysPath, String revokedPath) throws IOException {
+        File keysFile = new File(keysPath);
+        if (!keysFile.exists()) {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(keysFile))) {
+                writer.write("k1:" + Base64.getEncoder().encodeToString(secret));
+                writer.newLine();
+            }
+            System.out.println("Generated a new token signing key in " + keysPath);
+        }
+
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(keysFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.strip().split(":", 2);
+                if (parts.length == 2) keys.put(parts[0], Base64.getDecoder().decode(parts[1]));
+            }
+        }
+        if (keys.isEmpty()) throw new IOException("No signing key in " + keysPath);
+
+        TokenSigner signer = new TokenSigner(keys.keySet().iterator().next(), revokedPath);
+        signer.keys.putAll(keys);
+        signer.loadRevoked();
+        return signer;
+    }
+
+    // Checks whether a token uses the signed format (otherwise it is a session-store token)
+    public static boolean isSignedToken(String token) {
+        return token != null && token.startsWith(VERSION + ".");
+    }
+
+    /**
+     * Creates a signed token for a new session.
+     * @param username owner of the session
+     * @param rooms names of the subscribed rooms
+     * @param expiryTimeMillis absolute expiration time
+     * @return the token
+     */
+    public String issue(String username, List<String> rooms, long expiryTimeMillis) {
+        return issue(UUID.randomUUID().toString(), username, rooms, expiryTimeMillis);
+    }
+
+    /**
+     * Creates a signed token for an existing session (e.g. after its rooms changed).
+     * Keeping the id means revoking the session also revokes its earlier tokens.
+     * @param id session id from the claims of the previous token
+     * @param username owner of the session
+     * @param rooms names of the subscribed rooms
+     * @param expiryTimeMillis absolute expiration time
+     * @return the token
+     */
+    public String issue(String id, String username, List<String> rooms, long expiryTimeMillis) {
+        String payload = id + "\n" + username + "\n" + String.join(",", rooms) + "\n" + expiryTimeMillis;
+        String signed = VERSION + "." + activeKeyId + "." + ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        return signed + "." + ENCODER.encodeToString(sign(keys.get(activeKeyId), signed));
+    }
+
+    /**
+     * Verifies a token.
+     * @param token token received from a client
+     * @return its claims, or null if it is malformed, forged, expired, revoked or signed with an unknown key
+     */
+    public Claims verify(String token) {
+        try {
+            String[] parts = token.split("\\.");
+            if (parts.length != 4 || !parts[0].equals(VERSION)) return null;
+            byte[] key = keys.get(parts[1]);
+            if (key == null) return null; // Key was rotated out
+
+            byte[] expected = sign(key, parts[0] + "." + parts[1] + "." + parts[2]);
+            if (!MessageDigest.isEqual(expected, DECODER.decode(parts[3]))) return null;
+
+            String[] fields = new String(DECODER.decode(parts[2]), StandardCharsets.UTF_8).split("\n", -1);
+            if (fields.length != 4) return null;
+            long expiry = Long.parseLong(fields[3]);
+            if (System.currentTimeMillis() > expiry || isRevoked(fields[0])) return null;
+
+            List<String> rooms = new ArrayList<>();
+            for (String room : fields[2].split(",")) {
+                if (!room.isEmpty()) rooms.add(room);
+            }
+            return new Claims(fields[0], fields[1], rooms, expiry);
+        } catch (IllegalArgumentException e) {
+            return null; // Bad base64 or number
+        }
+    }
+
+    /**
+     * Adds a token id to the revocation list (e.g. on logout).
+     * @param id token id from its claims
+     * @param expiryTimeMillis when the token expires anyway, after which the entry is dropped
+     */
+    public void revoke(String id, long expiryTimeMillis) {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            revoked.values().removeIf(expiry -> expiry < now); // Keep the list small
+            revoked.put(id, expiryTimeMillis);
+            saveRevoked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns a copy of the revocation list (used to bring new cluster peers up to date)
+    public Map<String, Long> getRevoked() {
+        lock.readLock().lock();
+        try {
+            return new HashMap<>(revoked);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isRevoked(String id) {
+        lock.readLock().lock();
+        try {
+            return revoked.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static byte[] sign(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC not available", e);
+        }
+    }
+
+    // Loads revoked token ids that have not expired yet
+    private void loadRevoked() {
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new FileReader(revokedPath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(":");
+                if (parts.length == 2 && Long.parseLong(parts[1]) > now) {
+                    revoked.put(parts[0], Long.parseLong(parts[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // No revocation list yet
+        }
+    }
+
+    // Rewrites the revocation list file (caller holds the write lock)
+    private void saveRevoked() {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(revokedPath))) {
+            for (Map.Entry<String, Long> entry : revoked.entrySet()) {
+                writer.write(entry.getKey() + ":" + entry.getValue());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving revoked tokens: " + e.getMessage());
+        }
+    }
+}
@@ -73,17 +73,72 @@ public class UserManager {
                 return false; // User already exists
             }
             users.put(username, password); // Add to map
-            try (FileWriter fw = new FileWriter(userFilePath, true); // Append mode
-                 BufferedWriter bw = new BufferedWriter(fw)) {
-                bw.write(username + ":" + password); // Write to file
-                bw.newLine();
-            } catch (IOException e) {
-                System.err.println("Error saving user: " + e.getMessage());
+            if (!appendUser(username, password)) {
                 return false;
             }
+            ClusterNode cluster = ServerMain.getCluster();
+            if (cluster != null) {
+                cluster.replicateUser(username, password); // Let the other nodes authenticate this user
+            }
             return true;
         } finally {
             lock.writeLock().unlock(); // Release lock
         }
     }
+
+    /**
+     * Adds a user registered on another cluster node and saves it to the file, so it can
+     * still log in here after a restart. Users already known are left as they are
+     * (every link sync sends the full list again).
+     * @param username replicated username
+     * @param password associated password
+     */
+    public void addReplica(String username, String password) {
+        lock.writeLock().lock();
+        try {
+            if (users.putIfAbsent(username, password) == null) {
+                appendUser(username, password);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Appends a user to the file (called with the write lock held); returns false if it fails
+    private boolean appendUser(String username, String password) {
+        try (FileWriter fw = new FileWriter(userFilePath, true); // Append mode
+             BufferedWriter bw = new BufferedWriter(fw)) {
+            if (!endsWithNewline()) bw.newLine(); // A hand-edited file may lack the final line break
+            bw.write(username + ":" + password); // Write to file
+            bw.newLine();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving user: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Checks whether the file is empty or ends with a line break
+    private boolean endsWithNewline() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(userFilePath, "r")) {
+            if (file.length() == 0) return true;
+            file.seek(file.length() - 1);
+            return file.read() == '\n';
+        } catch (FileNotFoundException e) {
+            return true; // Created by the first append
+        }
+    }
+
+    /**
+     * Returns a copy of all known users (used to bring new cluster peers up to date).
+     * @return map of usernames to passwords
+     */
+    public Map<String, String> getUsers() {
+        lock.readLock().lock();
+        try {
+            return new HashMap<>(users);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory vector index over the messages of one room.
+ * Vectors are normalized and packed into one float array (like MessageLog packs
+ * message fields), so a search is a linear scan of dot products, which is fast
+ * enough for room-sized histories and needs no extra structure to update.
+ * Not thread-safe: the owning AiChatRoom guards it with its lock.
+ */
+public class VectorIndex {
+    private int dimensions; // Set by the first vector
+    private int size; // Number of indexed messages
+    private int[] positions = new int[64]; // Position of each indexed message in the room history
+    private float[] vectors = new float[0]; // Vector i spans vectors[i * dimensions, (i + 1) * dimensions)
+
+    /**
+     * Adds the vector of a message.
+     * @param position position of the message in the room history
+     * @param vector its embedding (not modified)
+     */
+    public void add(int position, float[] vector) {
+        if (size == 0 && dimensions == 0) {
+            dimensions = vector.length;
+            vectors = new float[64 * dimensions];
+        }
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+        }
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            vectors = Arrays.copyOf(vectors, size * 2 * dimensions);
+        }
+        float norm = norm(vector);
+        for (int d = 0; d < dimensions; d++) {
+            vectors[size * dimensions + d] = norm == 0 ? 0 : vector[d] / norm;
+        }
+        positions[size++] = position;
+    }
+
+    /**
+     * Finds the messages most similar to the query (cosine similarity).
+     * @param query embedding of the question
+     * @param k maximum number of results
+     * @param beforePosition only messages before this history position are considered
+     * @return history positions of the best matches, in chronological order
+     */
+    public List<Integer> search(float[] query, int k, int beforePosition) {
+        List<Integer> result = new ArrayList<>();
+        float norm = norm(query);
+        if (size == 0 || k <= 0 || norm == 0 || query.length != dimensions) return result;
+
+        // Keep the k best scores in a small array sorted from best to worst
+        int[] best = new int[k];
+        float[] bestScores = new float[k];
+        int found = 0;
+        for (int i = 0; i < size && positions[i] < beforePosition; i++) {
+            float score = 0;
+            int offset = i * dimensions;
+            for (int d = 0; d < dimensions; d++) {
+                score += vectors[offset + d] * query[d];
+            }
+            if (found == k && score <= bestScores[k - 1]) continue;
+            int j = Math.min(found, k - 1);
+            while (j > 0 && bestScores[j - 1] < score) {
+                best[j] = best[j - 1];
+                bestScores[j] = bestScores[j - 1];
+                j--;
+            }
+            best[j] = i;
+            bestScores[j] = score;
+            if (found < k) found++;
+        }
+
+        for (int i = 0; i < found; i++) {
+            if (bestScores[i] > 0) result.add(positions[best[i]]); // Unrelated messages are not worth the prompt space
+        }
+        result.sort(null);
+        return result;
+    }
+
+    // Returns the number of indexed messages
+    public int size() {
+        return size;
+    }
+
+    private static float norm(float[] vector) {
+        double sum = 0;
+        for (float v : vector) sum += v * v;
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,76 @@
+#!/usr/bin/env bash
+# Throughput benchmark of encrypted broadcast for each TLS setup:
+#   default : JVM default protocols and suites, bundled RSA key
+#   fast    : TLS 1.3 only (AES-GCM / ChaCha20), bundled RSA key
+#   fast-ec : TLS 1.3 only with an ECDSA P-256 key (generated here with keytool)
+# For each setup the server is started, RECEIVERS clients (openssl s_client) join one
+# room, and a sender posts MESSAGES lines that the server encrypts once per receiver.
+# Reported: time to connect and join all receivers (handshakes) and the delivery rate.
+#
+# Usage (from src/): ./tls-benchmark.sh [receivers] [messages]
+# Requires Java 21+ (javac, java, keytool) and openssl. Clients run on the same host,
+# so compare the profiles with each other rather than reading the absolute numbers.
+set -euo pipefail
+
+RECEIVERS=${1:-20}
+MESSAGES=${2:-2000}
+PORT=12345
+SRC_DIR=$(cd "$(dirname "$0")" && pwd)
+WORK_DIR=$(mktemp -d)
+SERVER_PID=
+trap '[ -n "$SERVER_PID" ] && kill "$SERVER_PID" 2>/dev/null && wait "$SERVER_PID"; kill $(jobs -p) 2>/dev/null; rm -rf "$WORK_DIR"' EXIT
+
+. "$SRC_DIR/bench-common.sh"
+
+compile_server "$WORK_DIR/classes"
+cp "$SRC_DIR/server_keystore.jks" "$WORK_DIR/"
+cd "$WORK_DIR"
+bench_users 0 "$RECEIVERS" > users.txt
+keytool -genkeypair -alias chat-ec -keyalg EC -groupname secp256r1 -sigalg SHA256withECDSA \
+        -dname "CN=localhost" -validity 30 -storetype PKCS12 -keystore ec_keystore.p12 \
+        -storepass benchpass -keypass benchpass > /dev/null 2>&1
+
+now_ms() { date +%s%3N; }
+
+run_profile() {
+    local name=$1
+    case "$name" in
+        default) printf 'keystore server_keystore.jks\nkeystore-password-env CHAT_KEYSTORE_PASSWORD\nprofile default\n' > tls.txt ;;
+        fast)    printf 'keystore server_keystore.jks\nkeystore-password-env CHAT_KEYSTORE_PASSWORD\nprofile fast\n' > tls.txt ;;
+        fast-ec) printf 'keystore ec_keystore.p12\nkeystore-type PKCS12\nkeystore-password benchpass\nkey-alias chat-ec\nprofile fast\n' > tls.txt ;;
+    esac
+    rm -f chat_*.txt sessions.txt client*.log
+    java -cp classes server.ServerMain > "server-$name.log" 2>&1 &
+    SERVER_PID=$!
+    wait_for_line "server-$name.log" "Chat server started"
+
+    # Receivers: log in, join the room and stay connected until the sender is done
+    local start
+    start=$(now_ms)
+    start_receivers "$PORT" "$RECEIVERS" bench
+    local joined=$(( $(now_ms) - start ))
+    local cipher
+    cipher=$(printf 'STATUS\n' | openssl s_client -connect "localhost:$PORT" 2>/dev/null | grep -m1 -E "Cipher is|Cipher    :" | sed 's/.*: *//; s/.*Cipher is //')
+
+    # Sender: every line is broadcast to all receivers
+    start=$(now_ms)
+    chat_client "$PORT" 0 bench client0.log send_burst "$MESSAGES" &
+    local expected=$(( RECEIVERS * MESSAGES ))
+    until [ "$(cat client[1-9]*.log | grep -c 'bench-msg')" -ge "$expected" ]; do sleep 0.05; done
+    local elapsed=$(( $(now_ms) - start ))
+
+    touch done
+    wait $(jobs -p | grep -v "^$SERVER_PID$") 2>/dev/null || true
+    rm -f done
+    kill "$SERVER_PID"
+    wait "$SERVER_PID" 2>/dev/null || true
+    SERVER_PID=
+
+    printf '%-8s %-28s join %6d ms   broadcast %6d ms   %8d lines/s\n' \
+        "$name" "$cipher" "$joined" "$elapsed" $(( expected * 1000 / (elapsed > 0 ? elapsed : 1) ))
+}
+
+echo "Receivers: $RECEIVERS, messages: $MESSAGES"
+for profile in default fast fast-ec; do
+    run_profile "$profile"
+done
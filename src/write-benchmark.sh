@@ -0,0 +1,84 @@
+#!/usr/bin/env bash
+# Counts the TLS records (one socket write each) the server sends per delivered message.
+# RECEIVERS clients (openssl s_client) join one room and a sender posts a burst of MESSAGES
+# lines. The server runs with -Djavax.net.debug=ssl:record, which logs every record it
+# writes; the application_data records written during the burst are divided by the number
+# of message lines that reached the clients.
+#
+# Without coalescing every line is its own record and write (1.0 per message); with the
+# per-connection writer a burst shares records, so the ratio drops well below 1.
+# Give a git revision to measure it the same way for comparison ("before" vs "after"):
+#   ./write-benchmark.sh 10 500 "$(git log --format=%h -1 --grep='Coalesce outbound')^"
+#
+# Usage (from src/): ./write-benchmark.sh [receivers] [messages] [baselineRevision]
+# Requires Java 21+ (javac, java), openssl and, for a baseline, git.
+set -euo pipefail
+
+RECEIVERS=${1:-10}
+MESSAGES=${2:-500}
+BASELINE=${3:-}
+PORT=12345
+SRC_DIR=$(cd "$(dirname "$0")" && pwd)
+WORK_DIR=$(mktemp -d)
+SERVER_PID=
+trap '[ -n "$SERVER_PID" ] && kill "$SERVER_PID" 2>/dev/null && wait "$SERVER_PID"; kill $(jobs -p) 2>/dev/null; rm -rf "$WORK_DIR"' EXIT
+. "$SRC_DIR/bench-common.sh"
+
+# Compiles the server of a source tree into a run directory with the files it needs
+prepare() {
+    local tree=$1 dir=$2
+    mkdir -p "$dir"
+    compile_server "$dir/classes" "$tree"
+    cp "$SRC_DIR/server_keystore.jks" "$dir/"
+    printf 'keystore server_keystore.jks\nkeystore-password-env CHAT_KEYSTORE_PASSWORD\nprofile default\n' > "$dir/tls.txt"
+    [ -f "$tree/ai.txt" ] && cp "$tree/ai.txt" "$dir/"
+    bench_users 0 "$RECEIVERS" > "$dir/users.txt"
+}
+
+# Counts the application data records in the server's debug log
+records() {
+    grep -c 'WRITE: TLSv1.3 application_data' "$1" || true
+}
+
+run() {
+    local name=$1 dir=$2
+    cd "$dir"
+    java -Djavax.net.debug=ssl:record -cp classes server.ServerMain > server.log 2> records.log &
+    SERVER_PID=$!
+    wait_for_line server.log "Chat server started"
+
+    # Receivers: log in, join the room and stay connected until the sender is done
+    start_receivers "$PORT" "$RECEIVERS" bench
+    sleep 1 # Let the join notices go out before counting
+
+    # Sender: one burst, every line is broadcast to all receivers (and echoed to the sender)
+    local before
+    before=$(records records.log)
+    chat_client "$PORT" 0 bench client0.log send_burst "$MESSAGES" &
+    until [ "$(cat client[1-9]*.log | grep -c 'bench-msg')" -ge $(( RECEIVERS * MESSAGES )) ]; do sleep 0.05; done
+    sleep 0.5 # The sender's own copies may still be in flight
+    local sent delivered
+    sent=$(( $(records records.log) - before ))
+    delivered=$(cat client*.log | grep -c 'bench-msg')
+
+    touch done
+    wait $(jobs -p | grep -v "^$SERVER_PID$") 2>/dev/null || true
+    kill "$SERVER_PID"
+    wait "$SERVER_PID" 2>/dev/null || true
+    SERVER_PID=
+    cd "$WORK_DIR"
+
+    # The sender's login and join replies are part of the burst window (a few records)
+    printf '%-10s %8d messages delivered   %7d records   %6s records/message\n' \
+        "$name" "$delivered" "$sent" "$(awk -v r="$sent" -v d="$delivered" 'BEGIN { printf "%.3f", r / d }')"
+}
+
+echo "Receivers: $RECEIVERS, messages: $MESSAGES"
+prepare "$SRC_DIR" "$WORK_DIR/current"
+if [ -n "$BASELINE" ]; then
+    mkdir "$WORK_DIR/baseline-src"
+    git -C "$SRC_DIR" archive "$BASELINE" | tar -x -C "$WORK_DIR/baseline-src" # Run from src/: archives src/ only
+    prepare "$WORK_DIR/baseline-src" "$WORK_DIR/baseline"
+    run "$BASELINE" "$WORK_DIR/baseline"
+fi
+run current "$WORK_DIR/current"